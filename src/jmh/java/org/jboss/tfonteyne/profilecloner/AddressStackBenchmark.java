@@ -0,0 +1,61 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Walking a deep address as the traversal does: push a level, render the address for the command, pop again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AddressStackBenchmark {
+
+    private final AddressStack address = new AddressStack("/profile=full-ha/subsystem=jgroups/stack=udp");
+
+    @Benchmark
+    public void pushRenderPop(final Blackhole blackhole) {
+        address.push("protocol", "pbcast.NAKACK2");
+        blackhole.consume(address.toStringBuilder().append(":add()").toString());
+        address.push("property", "max_bundle_size");
+        blackhole.consume(address.toStringBuilder().append(":add()").toString());
+        address.pop();
+        address.pop();
+    }
+
+    @Benchmark
+    public void walkMatch(final Blackhole blackhole) {
+        final AddressRules rules = AddressRules.forVersion(AddressRules.WILDFLY10);
+        address.push("protocol", "pbcast.NAKACK2");
+        blackhole.consume(rules.match(address));
+        address.pop();
+    }
+}
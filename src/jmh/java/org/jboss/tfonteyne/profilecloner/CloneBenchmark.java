@@ -0,0 +1,90 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.jboss.as.cli.CommandLineException;
+import org.jboss.dmr.ModelNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The traversal of a whole profile, after it was read: generating the CLI commands, or the DMR operations.
+ * <p>
+ * With the "gc" profiler, gc.alloc.rate.norm divided by the number of resources is the allocation per resource.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CloneBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    private int resources;
+
+    private GenericCloner cloner;
+
+    @Setup(Level.Trial)
+    public void setup()
+        throws IOException,
+               CommandLineException {
+        final ModelNode root = SyntheticModel.domain("full-ha", resources);
+        final OfflineClient client = new OfflineClient(new Snapshot(root));
+        cloner = new GenericCloner(client, "/profile=full-ha", "full-ha-copy", false);
+        // read once, each benchmark call only traverses
+        final ModelFetcher fetcher = new ModelFetcher(client);
+        cloner.fetch(fetcher);
+        fetcher.execute();
+    }
+
+    @Benchmark
+    public void commands(final Blackhole blackhole)
+        throws IOException,
+               CommandLineException {
+        cloner.copy(blackhole::consume);
+    }
+
+    @Benchmark
+    public void operations(final Blackhole blackhole)
+        throws IOException,
+               CommandLineException {
+        cloner.apply(new OperationSink() {
+            @Override
+            public void add(final ModelNode operation) {
+                blackhole.consume(operation);
+            }
+
+            @Override
+            public void runBatch() {
+            }
+        });
+    }
+}
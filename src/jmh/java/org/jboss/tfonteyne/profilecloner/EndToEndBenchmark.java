@@ -0,0 +1,121 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.jboss.as.cli.CommandLineException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * A whole run as done by {@link Main}: the controller type, the reads and the commands,
+ * against an {@link OfflineClient} adding a latency to each operation as a remote controller would.
+ * <p>
+ * The sample mode gives the percentiles, to see how the round trips and their jitter add up.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    /**
+     * The parameters of both benchmarks, each has its own state so that it only runs for its own parameters.
+     */
+    @State(Scope.Benchmark)
+    public abstract static class Model {
+        @Param({"1000", "10000"})
+        protected int resources;
+
+        // milliseconds per operation, with up to half of that as jitter
+        @Param({"0", "1", "5"})
+        protected int latency;
+
+        protected Snapshot snapshot;
+
+        /**
+         * A new client for each run, so that nothing is remembered of the previous one.
+         */
+        OfflineClient client() {
+            final OfflineClient client = new OfflineClient(snapshot);
+            client.setLatency(Duration.ofMillis(latency), Duration.ofMillis(latency).dividedBy(2));
+            return client;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Domain extends Model {
+        @Setup(Level.Trial)
+        public void setup() {
+            snapshot = new Snapshot(SyntheticModel.domain("full-ha", resources));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Standalone extends Model {
+        // subsystems rendered concurrently
+        @Param({"1", "4"})
+        protected int threads;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            snapshot = new Snapshot(SyntheticModel.standalone(resources));
+        }
+    }
+
+    @Benchmark
+    public void domainProfile(final Domain model,
+                              final Blackhole blackhole)
+        throws IOException,
+               CommandLineException {
+        final OfflineClient client = model.client();
+        ControllerInfo.of(client);
+        final GenericCloner cloner = new GenericCloner(client, "/profile=full-ha", "full-ha-copy", false);
+        final ModelFetcher fetcher = new ModelFetcher(client);
+        cloner.fetch(fetcher);
+        fetcher.execute();
+        cloner.copy(blackhole::consume);
+    }
+
+    @Benchmark
+    public void standaloneProfile(final Standalone model,
+                                  final Blackhole blackhole)
+        throws IOException,
+               CommandLineException {
+        final OfflineClient client = model.client();
+        ControllerInfo.of(client);
+        final StandaloneCloner cloner = new StandaloneCloner(client, model.threads);
+        final ModelFetcher fetcher = new ModelFetcher(client);
+        cloner.fetch(fetcher);
+        fetcher.execute();
+        cloner.copy(blackhole::consume);
+    }
+}
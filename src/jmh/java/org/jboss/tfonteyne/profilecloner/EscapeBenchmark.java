@@ -0,0 +1,87 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.jboss.as.cli.CommandLineException;
+import org.jboss.dmr.ModelNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Rendering large attribute values: a single resource with a plain string, a string full of
+ * characters to escape, a list and a complex attribute, each of about the given length.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EscapeBenchmark {
+
+    @Param({"1024", "65536", "1048576"})
+    private int length;
+
+    private GenericCloner cloner;
+
+    @Setup(Level.Trial)
+    public void setup()
+        throws IOException,
+               CommandLineException {
+        final StringBuilder plain = new StringBuilder(length);
+        final StringBuilder escaped = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            plain.append((char) ('a' + i % 26));
+            escaped.append(i % 4 == 0 ? '=' : i % 4 == 1 ? '"' : (char) ('a' + i % 26));
+        }
+        final ModelNode resource = new ModelNode();
+        resource.get("plain").set(plain.toString());
+        resource.get("escaped").set(escaped.toString());
+        for (int i = 0; i < length / 16; i++) {
+            resource.get("list").add("entry=\"" + i + "\"");
+            resource.get("complex").get("key" + i).set("value=" + i);
+        }
+
+        final ModelNode root = SyntheticModel.domain("full-ha", 0);
+        root.get("profile", "full-ha", "subsystem", "large").set(resource);
+        final OfflineClient client = new OfflineClient(new Snapshot(root));
+        cloner = new GenericCloner(client, "/profile=full-ha/subsystem=large", "large", false);
+        final ModelFetcher fetcher = new ModelFetcher(client);
+        cloner.fetch(fetcher);
+        fetcher.execute();
+    }
+
+    @Benchmark
+    public void render(final Blackhole blackhole)
+        throws IOException,
+               CommandLineException {
+        cloner.copy(blackhole::consume);
+    }
+}
@@ -40,6 +40,12 @@ public class Address {
 
     @Override
     public String toString() {
-        return "/" + name + "=\"" + value + "\"";
+        return appendTo(new StringBuilder(name.length() + value.length() + 4), name, value).toString();
+    }
+
+    static StringBuilder appendTo(final StringBuilder builder,
+                                  final String name,
+                                  final String value) {
+        return builder.append('/').append(name).append("=\"").append(value).append('"');
     }
 }
@@ -0,0 +1,148 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The resources to clone, as given with "--include" and "--exclude".
+ * <p>
+ * Patterns are source addresses, "/name=value/name=value/...", where a name or value can be "*",
+ * "prefix*" or "*suffix" as in {@link AddressRules}. A pattern matches the resource at its address
+ * and all resources below it. With include patterns, only the resources they match are cloned, together
+ * with their parents; the exclude patterns leave out what they match from that.
+ * <p>
+ * Besides whether a resource is cloned, the filter tells whether everything below it is, so a read
+ * can stop at the resources below which something is left out, see {@link PrunedReader}.
+ */
+public class AddressFilter {
+
+    public enum Decision {
+        // the resource and all resources below it are left out
+        PRUNE,
+        // the resource is cloned, but some of the resources below it are not
+        PARTIAL,
+        // the resource and all resources below it are cloned
+        ALL
+    }
+
+    private final List<Address[]> includes;
+    private final List<Address[]> excludes;
+
+    // the depth at which the source value is used instead of the one of the address, -1 for none
+    private final int root;
+    private final String rootValue;
+
+    /**
+     * @param includes the patterns of the resources to clone, empty for all of them
+     * @param excludes the patterns of the resources not to clone
+     * @throws IllegalArgumentException for a pattern which is no address
+     */
+    public AddressFilter(final List<String> includes,
+                         final List<String> excludes) {
+        this(compile(includes), compile(excludes), -1, null);
+    }
+
+    private AddressFilter(final List<Address[]> includes,
+                          final List<Address[]> excludes,
+                          final int root,
+                          final String rootValue) {
+        this.includes = includes;
+        this.excludes = excludes;
+        this.root = root;
+        this.rootValue = rootValue;
+    }
+
+    private static List<Address[]> compile(final List<String> patterns) {
+        final List<Address[]> compiled = new ArrayList<>(patterns.size());
+        for (String pattern : patterns) {
+            final String[] segments = (pattern.startsWith("/") ? pattern.substring(1) : pattern).split("/");
+            final Address[] addresses = new Address[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                try {
+                    addresses[i] = new Address(segments[i]);
+                } catch (final ArrayIndexOutOfBoundsException e) {
+                    throw new IllegalArgumentException("Invalid address pattern: " + pattern);
+                }
+                if (addresses[i].name.isEmpty() || addresses[i].value.isEmpty()) {
+                    throw new IllegalArgumentException("Invalid address pattern: " + pattern);
+                }
+            }
+            compiled.add(addresses);
+        }
+        return Collections.unmodifiableList(compiled);
+    }
+
+    /**
+     * A cloner walks the destination, which only differs from the source in the value of the cloned root.
+     *
+     * @param source the address of the cloned root
+     * @return the filter for the addresses below the source, and below its destination
+     */
+    public AddressFilter forSource(final AddressStack source) {
+        final int depth = source.size() - 1;
+        return new AddressFilter(includes, excludes, depth, source.getValue(depth));
+    }
+
+    /**
+     * @param address of the resource
+     * @return whether the resource, and the resources below it, are cloned
+     */
+    public Decision decide(final AddressStack address) {
+        boolean included = includes.isEmpty();
+        boolean parent = false;
+        for (Address[] pattern : includes) {
+            final int matched = matched(pattern, address);
+            if (matched == pattern.length) {
+                included = true;
+                break;
+            } else if (matched == address.size()) {
+                parent = true;
+            }
+        }
+        if (!included && !parent) {
+            return Decision.PRUNE;
+        }
+        boolean partial = !included;
+        for (Address[] pattern : excludes) {
+            final int matched = matched(pattern, address);
+            if (matched == pattern.length) {
+                return Decision.PRUNE;
+            } else if (matched == address.size()) {
+                partial = true;
+            }
+        }
+        return partial ? Decision.PARTIAL : Decision.ALL;
+    }
+
+    /**
+     * @return the number of leading segments the pattern and the address have in common
+     */
+    private int matched(final Address[] pattern,
+                        final AddressStack address) {
+        final int length = Math.min(pattern.length, address.size());
+        int i = 0;
+        while (i < length
+               && AddressRules.matches(pattern[i].name, address.getName(i))
+               && AddressRules.matches(pattern[i].value, i == root ? rootValue : address.getValue(i))) {
+            i++;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The compatibility rules applied while cloning, compiled into a trie of address segments.
+ * <p>
+ * A resource is matched once against the trie, segment by segment, instead of against a
+ * regular expression per rule. Rules depending on the management version are only compiled
+ * into the trie for the versions they apply to.
+ * <p>
+ * Patterns are written as "name=value/name=value/..." where a name can be "*", "prefix*" or
+ * "*suffix" and a value either a literal or "*". "Rooted" patterns must match from the start of
+ * the address, "floating" patterns can start at any segment. Unless marked as exact, a pattern
+ * also matches all resources below it.
+ */
+public class AddressRules {
+
+    // mostly for reference, used for compatibility exceptions
+    static final int EAP6 = 1;
+    static final int WILDFLY8 = 2;
+    static final int WILDFLY9 = 3;
+    static final int WILDFLY10 = 4; // == EAP 7
+
+    private static final Map<Integer, AddressRules> COMPILED = new ConcurrentHashMap<>();
+
+    private final Node rooted = new Node();
+    private final Node floating = new Node();
+
+    /**
+     * @param managementMajorVersion of the controller we are cloning from
+     * @return the rules for the given version, compiled once and shared
+     */
+    public static AddressRules forVersion(final int managementMajorVersion) {
+        return COMPILED.computeIfAbsent(managementMajorVersion, AddressRules::compile);
+    }
+
+    private static AddressRules compile(final int managementMajorVersion) {
+        final AddressRules rules = new AddressRules();
+
+        if (managementMajorVersion < WILDFLY9) {
+            // pre WildFly 9 required special handling of the JGroups protocols which were set
+            // using "add-protocol" instead of the normal "add", but not for their child resources
+            rules.floating("subsystem=jgroups/stack=*/protocol=*", true).addProtocol = true;
+        }
+
+        // deployments are only added if asked for
+        rules.rooted("server-group=*/deployment*=*", false).deployment = true;
+
+        // Messaging has a concept "runtime-queue" which shows up even when asked include-runtime=false
+        rules.floating("subsystem=messaging/hornetq-server=*/runtime-queue=*", false).skip = true;
+
+        // JGroups has "protocols" as read-only, but we get it back anyhow -> remove
+        rules.floating("subsystem=jgroups/stack=*", false).exclude("protocols");
+
+        // deprecated attributes -> remove
+        rules.floating("subsystem=security/security-domain=*/*=classic", true)
+            .exclude("login-modules", "policy-modules", "provider-modules", "trust-modules", "mapping-modules");
+        rules.floating("subsystem=security/security-domain=*/*=jaspi", true)
+            .exclude("auth-modules");
+        rules.floating("subsystem=security/security-domain=*/*=jaspi/login-module-stack=*", false)
+            .exclude("login-modules");
+
+        // These have "name" as read-only, but we get it back anyhow -> remove
+        rules.floating("subsystem=logging/*file-handler=*", false).exclude("name");
+        rules.floating("subsystem=logging/logging-profile=*/*file-handler=*", false).exclude("name");
+        rules.floating("subsystem=batch-jberet/thread-pool=*", false).exclude("name");
+        // the thread pools of a (distributed) work manager
+        rules.floating("subsystem=jca/*workmanager=*/*running-threads=*", false).exclude("name");
+        rules.floating("subsystem=ejb3/thread-pool=*", false).exclude("name");
+
+        // profile has "name" as read-only, but we get it back anyhow -> remove
+        rules.rooted("profile=*", true).exclude("name");
+
+        rules.rooted.seal();
+        rules.floating.seal();
+        return rules;
+    }
+
+    private Rule rooted(final String pattern,
+                        final boolean exact) {
+        return rooted.add(pattern, exact);
+    }
+
+    private Rule floating(final String pattern,
+                          final boolean exact) {
+        return floating.add(pattern, exact);
+    }
+
+    /**
+     * Match the current top of the stack against all rules.
+     *
+     * @param address the address of the resource being cloned
+     * @return the combined outcome of all matching rules, never null
+     */
+    public Match match(final AddressStack address) {
+        if (address.size() == 0) {
+            return Match.NONE;
+        }
+        Match match = rooted.match(address, 0, Match.NONE);
+        for (int start = 0; start < address.size(); start++) {
+            match = floating.match(address, start, match);
+        }
+        return match;
+    }
+
+    /**
+     * @param pattern a name or value of a pattern: a literal, "*", "prefix*" or "*suffix"
+     * @param segment the name or value of an address segment
+     * @return true if the pattern matches the segment
+     */
+    static boolean matches(final String pattern,
+                           final String segment) {
+        if ("*".equals(pattern)) {
+            return true;
+        }
+        final int length = pattern.length() - 1;
+        if (pattern.charAt(0) == '*') {
+            return segment.regionMatches(segment.length() - length, pattern, 1, length);
+        } else if (pattern.charAt(length) == '*') {
+            return segment.regionMatches(0, pattern, 0, length);
+        }
+        return pattern.equals(segment);
+    }
+
+    /**
+     * The outcome of matching a resource address against the rules.
+     */
+    public static final class Match {
+
+        static final Match NONE = new Match(false, false, false, Collections.emptySet());
+
+        private final boolean skip;
+        private final boolean deployment;
+        private final boolean addProtocol;
+        private final Set<String> excludedAttributes;
+
+        private Match(final boolean skip,
+                      final boolean deployment,
+                      final boolean addProtocol,
+                      final Set<String> excludedAttributes) {
+            this.skip = skip;
+            this.deployment = deployment;
+            this.addProtocol = addProtocol;
+            this.excludedAttributes = excludedAttributes;
+        }
+
+        /**
+         * @return true if the resource (and its children) should not be cloned at all
+         */
+        public boolean isSkip() {
+            return skip;
+        }
+
+        /**
+         * @return true if the resource is a deployment, only to be cloned when asked for
+         */
+        public boolean isDeployment() {
+            return deployment;
+        }
+
+        /**
+         * @return true if the resource must be created with "add-protocol" on its parent
+         */
+        public boolean isAddProtocol() {
+            return addProtocol;
+        }
+
+        /**
+         * @param attribute name
+         * @return true if the attribute should not be part of the "add" command
+         */
+        public boolean isExcluded(final String attribute) {
+            return excludedAttributes.contains(attribute);
+        }
+
+        private Match merge(final Match other) {
+            if (other == NONE) {
+                return this;
+            } else if (this == NONE) {
+                return other;
+            }
+            final Set<String> excluded = new HashSet<>(excludedAttributes);
+            excluded.addAll(other.excludedAttributes);
+            return new Match(skip || other.skip,
+                             deployment || other.deployment,
+                             addProtocol || other.addProtocol,
+                             excluded);
+        }
+    }
+
+    /**
+     * Collects the actions of one pattern while compiling.
+     */
+    private static final class Rule {
+        private boolean skip;
+        private boolean deployment;
+        private boolean addProtocol;
+        private final Set<String> excludedAttributes = new HashSet<>();
+
+        private void exclude(final String... attributes) {
+            Collections.addAll(excludedAttributes, attributes);
+        }
+
+        private Match toMatch() {
+            return new Match(skip, deployment, addProtocol, Collections.unmodifiableSet(excludedAttributes));
+        }
+    }
+
+    /**
+     * A trie node; children with a literal segment name are found by hash lookup,
+     * the (few) wildcard names are checked one by one.
+     */
+    private static final class Node {
+        private final Map<String, List<Edge>> literalNames = new HashMap<>();
+        private final List<Edge> wildcardNames = new ArrayList<>();
+
+        private final List<Rule> exactRules = new ArrayList<>();
+        private final List<Rule> subtreeRules = new ArrayList<>();
+
+        // the compiled outcome when the address ends here, and when it continues below here
+        private Match exact = Match.NONE;
+        private Match subtree = Match.NONE;
+
+        private Rule add(final String pattern,
+                         final boolean exact) {
+            Node node = this;
+            for (String segment : pattern.split("/")) {
+                node = node.child(new Address(segment));
+            }
+            final Rule rule = new Rule();
+            if (exact) {
+                node.exactRules.add(rule);
+            } else {
+                node.subtreeRules.add(rule);
+            }
+            return rule;
+        }
+
+        private Node child(final Address segment) {
+            final List<Edge> edges;
+            if (segment.name.indexOf('*') < 0) {
+                edges = literalNames.computeIfAbsent(segment.name, n -> new ArrayList<>());
+            } else {
+                edges = wildcardNames;
+            }
+            for (Edge edge : edges) {
+                if (edge.name.equals(segment.name) && edge.value.equals(segment.value)) {
+                    return edge.node;
+                }
+            }
+            final Edge edge = new Edge(segment.name, segment.value, new Node());
+            edges.add(edge);
+            return edge.node;
+        }
+
+        private void seal() {
+            for (Rule rule : subtreeRules) {
+                subtree = subtree.merge(rule.toMatch());
+            }
+            exact = subtree;
+            for (Rule rule : exactRules) {
+                exact = exact.merge(rule.toMatch());
+            }
+            literalNames.values().forEach(edges -> edges.forEach(edge -> edge.node.seal()));
+            wildcardNames.forEach(edge -> edge.node.seal());
+        }
+
+        /**
+         * Walk the trie starting with the segment at the given depth of the address.
+         */
+        private Match match(final AddressStack address,
+                            final int depth,
+                            Match match) {
+            final String name = address.getName(depth);
+            final String value = address.getValue(depth);
+            final List<Edge> edges = literalNames.get(name);
+            if (edges != null) {
+                for (Edge edge : edges) {
+                    match = edge.match(address, depth, name, value, match);
+                }
+            }
+            for (Edge edge : wildcardNames) {
+                match = edge.match(address, depth, name, value, match);
+            }
+            return match;
+        }
+    }
+
+    private static final class Edge {
+        private final String name;
+        private final String value;
+        private final Node node;
+
+        private Edge(final String name,
+                     final String value,
+                     final Node node) {
+            this.name = name;
+            this.value = value;
+            this.node = node;
+        }
+
+        private Match match(final AddressStack address,
+                            final int depth,
+                            final String segmentName,
+                            final String segmentValue,
+                            final Match match) {
+            if (!matches(name, segmentName) || !matches(value, segmentValue)) {
+                return match;
+            }
+            if (depth == address.size() - 1) {
+                return match.merge(node.exact);
+            }
+            return node.match(address, depth + 1, match.merge(node.subtree));
+        }
+    }
+}
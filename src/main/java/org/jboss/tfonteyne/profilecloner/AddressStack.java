@@ -16,54 +16,148 @@
  */
 package org.jboss.tfonteyne.profilecloner;
 
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.EmptyStackException;
 import org.jboss.as.controller.client.helpers.ClientConstants;
 import org.jboss.dmr.ModelNode;
 
+/**
+ * The address of the resource being cloned.
+ * <p>
+ * The rendered form of the whole address is kept up to date on each push/pop, only the
+ * last segment is appended or cut off, so rendering an address never walks the stack.
+ * Not thread safe; each traversal uses its own stack.
+ */
 public class AddressStack {
 
-    private final Stack<Address> adresses = new Stack<>();
+    private static final int INITIAL_DEPTH = 16;
+
+    private String[] names = new String[INITIAL_DEPTH];
+    private String[] values = new String[INITIAL_DEPTH];
+    // the length of the rendered address up to and including each depth
+    private int[] ends = new int[INITIAL_DEPTH];
+    private int size = 0;
+
+    private final StringBuilder rendered = new StringBuilder(256);
 
     public AddressStack(final String root,
                         final String source) {
-        adresses.push(new Address(root, source));
+        push(root, source);
     }
 
     public AddressStack(final String source) {
         final String[] nvPairs = source.split("/");
         for (int i = 1; i < nvPairs.length; i++) {
-            adresses.push(new Address(nvPairs[i]));
+            push(nvPairs[i]);
         }
     }
 
     public void push(final Address address) {
-        adresses.push(address);
+        push(address.name, address.value);
     }
 
     public void push(final String nvString) {
-        adresses.push(new Address(nvString));
+        push(new Address(nvString));
+    }
+
+    public void push(final String name,
+                     final String value) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+        }
+        names[size] = name;
+        values[size] = value;
+        Address.appendTo(rendered, name, value);
+        ends[size] = rendered.length();
+        size++;
     }
 
     public void pop() {
-        adresses.pop();
+        if (size == 0) {
+            throw new EmptyStackException();
+        }
+        size--;
+        names[size] = null;
+        values[size] = null;
+        rendered.setLength(size == 0 ? 0 : ends[size - 1]);
+    }
+
+    /**
+     * @return the number of "/name=value" segments
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param depth of the segment, 0 being the root
+     * @return the name part of the segment
+     */
+    public String getName(final int depth) {
+        checkDepth(depth);
+        return names[depth];
+    }
+
+    /**
+     * @param depth of the segment, 0 being the root
+     * @return the (unquoted) value part of the segment
+     */
+    public String getValue(final int depth) {
+        checkDepth(depth);
+        return values[depth];
+    }
+
+    private void checkDepth(final int depth) {
+        if (depth >= size) {
+            throw new ArrayIndexOutOfBoundsException(depth);
+        }
+    }
+
+    /**
+     * @return the length of the rendered address
+     */
+    public int length() {
+        return rendered.length();
     }
 
     @Override
     public String toString() {
-        return toStringBuilder().toString();
+        return rendered.toString();
     }
 
     public StringBuilder toStringBuilder() {
-        final StringBuilder adressString = new StringBuilder();
-        for (Address address : adresses) {
-            adressString.append(address.toString());
-        }
-        return adressString;
+        return appendTo(new StringBuilder(rendered.length() + 64));
+    }
+
+    /**
+     * Append the rendered address, without any intermediate strings.
+     *
+     * @param builder
+     * @return the builder
+     */
+    public StringBuilder appendTo(final StringBuilder builder) {
+        return builder.append(rendered);
     }
 
     public void setAddress(final ModelNode node) {
-        for (Address address : adresses) {
-            node.get(ClientConstants.OP_ADDR).add(address.name, address.value);
+        setAddress(node, size);
+    }
+
+    /**
+     * @param node  the operation to set the address on
+     * @param depth the number of segments to use, 0 being the root itself
+     */
+    public void setAddress(final ModelNode node,
+                           final int depth) {
+        checkDepth(depth - 1);
+        final ModelNode address = node.get(ClientConstants.OP_ADDR);
+        if (depth == 0) {
+            address.setEmptyList();
+        }
+        for (int i = 0; i < depth; i++) {
+            address.add(names[i], values[i]);
         }
     }
 }
@@ -0,0 +1,100 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Java Flight Recorder events of the cloner, so the round trips to the controller and the
+ * traversals show up next to the GC and allocation events of the same recording.
+ * <p>
+ * The events are enabled by default, and cost next to nothing when no recording is running.
+ */
+final class CloneEvents {
+
+    private static final String CATEGORY = "Profile Cloner";
+
+    private CloneEvents() {
+    }
+
+    @Name("org.jboss.tfonteyne.profilecloner.ManagementOperation")
+    @Label("Management Operation")
+    @Description("A round trip to the controller")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class ManagementOperation extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Address")
+        String address;
+
+        @Label("Steps")
+        @Description("The number of steps of a composite")
+        int steps;
+
+        @Label("Outcome")
+        String outcome;
+
+        @Label("Response Size")
+        @Description("The size of the response in DMR binary form")
+        @DataAmount
+        long responseSize;
+    }
+
+    @Name("org.jboss.tfonteyne.profilecloner.CloneRoot")
+    @Label("Clone Root")
+    @Description("Generating the commands or operations of one cloned root")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class CloneRoot extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("Destination")
+        String destination;
+
+        @Label("Operations")
+        @Description("True when generating DMR operations instead of CLI commands")
+        boolean operations;
+
+        @Label("Resources")
+        long resources;
+
+        @Label("Commands")
+        long commands;
+    }
+
+    @Name("org.jboss.tfonteyne.profilecloner.SubsystemTraversal")
+    @Label("Subsystem Traversal")
+    @Description("Generating the commands or operations of one subsystem")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class SubsystemTraversal extends Event {
+        @Label("Address")
+        String address;
+
+        @Label("Resources")
+        long resources;
+    }
+}
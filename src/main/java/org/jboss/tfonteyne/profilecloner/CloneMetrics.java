@@ -0,0 +1,182 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Wall times of the phases of a run, and counts for each cloned root, written out as a JSON report.
+ * <p>
+ * The phases are "connect" (or reading the snapshot), "read" (the controller type and the model reads),
+ * "content" (exporting the deployment content, if asked for), "traverse" (generating the commands or
+ * operations) and "write" (the time spent in the writer or in applying the operations). As the commands are written while they are generated, the write time
+ * is measured in the sink, and the traverse time is what is left of the clone.
+ * <p>
+ * The counts of a root are only updated by the thread cloning it, and read after it is done.
+ */
+public class CloneMetrics {
+
+    public static final String CONNECT = "connect";
+    public static final String READ = "read";
+    public static final String CONTENT = "content";
+    public static final String TRAVERSE = "traverse";
+    public static final String WRITE = "write";
+    public static final String CAPTURE = "capture";
+
+    private static final double NANOS_PER_MILLI = 1_000_000d;
+
+    private final Instant started = Instant.now();
+    private final long start = System.nanoTime();
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private final Map<String, Root> roots = new LinkedHashMap<>();
+
+    /**
+     * Add the time since the given moment to a phase.
+     *
+     * @param phase
+     * @param since a {@link System#nanoTime()}
+     * @return the current {@link System#nanoTime()}, the start of the next phase
+     */
+    public synchronized long phase(final String phase,
+                                   final long since) {
+        final long now = System.nanoTime();
+        phases.merge(phase, now - since, Long::sum);
+        return now;
+    }
+
+    /**
+     * @param phase
+     * @param nanos to add to the phase
+     */
+    public synchronized void add(final String phase,
+                                 final long nanos) {
+        phases.merge(phase, nanos, Long::sum);
+    }
+
+    /**
+     * @param source      the CLI address of the root
+     * @param destination the CLI address it is cloned to
+     * @return the counts of the root, registered in the report on first use
+     */
+    public synchronized Root root(final String source,
+                                  final String destination) {
+        return roots.computeIfAbsent(destination, d -> new Root(source, d));
+    }
+
+    public synchronized ModelNode toModelNode() {
+        final ModelNode report = new ModelNode();
+        report.get("started").set(started.toString());
+        report.get("total-ms").set(millis(System.nanoTime() - start));
+        final ModelNode times = report.get("phases-ms").setEmptyObject();
+        for (Map.Entry<String, Long> phase : phases.entrySet()) {
+            times.get(phase.getKey()).set(millis(phase.getValue()));
+        }
+        final ModelNode list = report.get("roots").setEmptyList();
+        for (Root root : roots.values()) {
+            list.add(root.toModelNode());
+        }
+        return report;
+    }
+
+    /**
+     * @param file to write the report to, as JSON
+     * @throws IOException
+     */
+    public void write(final Path file)
+        throws IOException {
+        Files.write(file, List.of(toModelNode().toJSONString(false)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of bytes of a line in UTF-8, including the line separator
+     */
+    static int lineLength(final CharSequence line) {
+        int length = System.lineSeparator().length();
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < line.length() && Character.isLowSurrogate(line.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static double millis(final long nanos) {
+        return nanos / NANOS_PER_MILLI;
+    }
+
+    /**
+     * The counts of one cloned root.
+     */
+    public static final class Root {
+        private final String source;
+        private final String destination;
+
+        long nanos;
+        long resources;
+        long attributes;
+        long commands;
+        // only counted for CLI commands, left out of the report for operations
+        boolean commandLine;
+        long bytes;
+        // what the compatibility rules, and the include/exclude patterns, left out
+        long skippedResources;
+        long skippedDeployments;
+        long filteredResources;
+        long excludedAttributes;
+
+        private Root(final String source,
+                     final String destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+
+        private ModelNode toModelNode() {
+            final ModelNode root = new ModelNode();
+            root.get("source").set(source);
+            root.get("destination").set(destination);
+            root.get("clone-ms").set(millis(nanos));
+            root.get("resources").set(resources);
+            root.get("attributes").set(attributes);
+            root.get("commands").set(commands);
+            if (commandLine) {
+                root.get("bytes").set(bytes);
+            }
+            final ModelNode pruned = root.get("pruned");
+            pruned.get("skipped-resources").set(skippedResources);
+            pruned.get("skipped-deployments").set(skippedDeployments);
+            pruned.get("filtered-resources").set(filteredResources);
+            pruned.get("excluded-attributes").set(excludedAttributes);
+            return root;
+        }
+    }
+}
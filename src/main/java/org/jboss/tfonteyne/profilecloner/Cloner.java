@@ -17,11 +17,57 @@
 package org.jboss.tfonteyne.profilecloner;
 
 import java.io.IOException;
+import java.util.LinkedList;
 import java.util.List;
 import org.jboss.as.cli.CommandLineException;
 
 public interface Cloner {
-    List<String> copy() 
-        throws IOException, 
+
+    /**
+     * Register the reads this cloner needs, so they can be executed together with those
+     * of the other cloners. Without this, a cloner reads its source itself in {@link #copy(CommandSink)}.
+     *
+     * @param fetcher
+     * @throws IOException
+     * @throws CommandLineException
+     */
+    default void fetch(ModelFetcher fetcher)
+        throws IOException,
+               CommandLineException {
+    }
+
+    /**
+     * Generate the CLI commands, handing each one to the sink as soon as it is available.
+     *
+     * @param sink
+     * @throws IOException
+     * @throws CommandLineException
+     */
+    void copy(CommandSink sink)
+        throws IOException,
                CommandLineException;
+
+    /**
+     * Generate the same as {@link #copy(CommandSink)}, but as DMR operations ready to be executed.
+     *
+     * @param sink
+     * @throws IOException
+     * @throws CommandLineException
+     */
+    void apply(OperationSink sink)
+        throws IOException,
+               CommandLineException;
+
+    /**
+     * @return all CLI commands at once
+     * @throws IOException
+     * @throws CommandLineException
+     */
+    default List<String> copy() 
+        throws IOException, 
+               CommandLineException {
+        final List<String> commands = new LinkedList<>();
+        copy(commands::add);
+        return commands;
+    }
 }
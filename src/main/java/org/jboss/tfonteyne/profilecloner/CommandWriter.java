@@ -0,0 +1,75 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Writes the commands, one per line, as they are generated.
+ * The console is flushed but never closed.
+ */
+public class CommandWriter implements CommandSink, Closeable {
+
+    private final Writer writer;
+    private final boolean console;
+
+    private CommandWriter(final Writer writer,
+                          final boolean console) {
+        this.writer = writer;
+        this.console = console;
+    }
+
+    /**
+     * @param filename the file to write to, or null for the console
+     * @param console  the console, flushed but not closed
+     * @return
+     * @throws IOException
+     */
+    public static CommandWriter open(final String filename,
+                                     final OutputStream console)
+        throws IOException {
+        if (filename == null) {
+            return new CommandWriter(new BufferedWriter(new OutputStreamWriter(console, Charset.defaultCharset())), true);
+        }
+        return new CommandWriter(Files.newBufferedWriter(Paths.get(filename), Charset.defaultCharset()), false);
+    }
+
+    @Override
+    public void add(final String command)
+        throws IOException {
+        writer.write(command);
+        writer.write(System.lineSeparator());
+    }
+
+    @Override
+    public void close()
+        throws IOException {
+        if (console) {
+            writer.flush();
+        } else {
+            writer.close();
+        }
+    }
+}
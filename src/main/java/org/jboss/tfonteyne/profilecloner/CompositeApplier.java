@@ -0,0 +1,304 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Executes the cloned operations on a controller, without going through the CLI:
+ * the operations are sent as "composite" operations, so each chunk is applied or rolled back as a whole.
+ * <p>
+ * Without a chunk size, each batch is one composite, the same as a CLI run-batch. With a chunk size,
+ * larger batches are split; the chunks before a failing one stay applied.
+ * <p>
+ * When a clone was split in batches, see {@link GenericCloner#setBatchSize(int)}, the batches not depending
+ * on each other are applied concurrently. A failing batch only holds back the batches depending on it; it is
+ * retried once after the others of the clone are done, in case it needed one of them after all.
+ * <p>
+ * After a failure that remains, nothing else is executed, as later operations will likely depend on it.
+ */
+public class CompositeApplier implements OperationSink {
+
+    private static final String FAILED = "failed";
+    private static final String COMPOSITE = "composite";
+    private static final String STEPS = "steps";
+
+    private final ModelControllerClient client;
+    private final int chunkSize;
+    private final PrintStream report;
+    private final ExecutorService executor;
+
+    private final List<ModelNode> operations = new ArrayList<>();
+    // the batches of the clone being applied, by number; read by the workers
+    private final Map<Integer, Batch> batches = new ConcurrentSkipListMap<>();
+
+    private final AtomicInteger chunks = new AtomicInteger();
+    private final AtomicInteger applied = new AtomicInteger();
+    private int skipped = 0;
+    private boolean failed = false;
+
+    /**
+     * @param client    of the destination controller
+     * @param chunkSize the maximum number of operations in one composite, 0 for one composite per batch
+     * @param report    receives a line per chunk
+     */
+    public CompositeApplier(final ModelControllerClient client,
+                            final int chunkSize,
+                            final PrintStream report) {
+        this(client, chunkSize, 1, report);
+    }
+
+    /**
+     * @param client    of the destination controller
+     * @param chunkSize the maximum number of operations in one composite, 0 for one composite per batch
+     * @param threads   the number of independent batches to apply at the same time
+     * @param report    receives a line per chunk
+     */
+    public CompositeApplier(final ModelControllerClient client,
+                            final int chunkSize,
+                            final int threads,
+                            final PrintStream report) {
+        this.client = client;
+        this.chunkSize = chunkSize;
+        this.report = report;
+        if (threads > 1) {
+            final AtomicInteger count = new AtomicInteger();
+            // first in, first out: the batches a batch waits for are always running or done already
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                final Thread thread = new Thread(runnable, "profilecloner-apply-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            executor = null;
+        }
+    }
+
+    @Override
+    public void add(final ModelNode operation)
+        throws IOException {
+        if (failed) {
+            skipped++;
+            return;
+        }
+        operations.add(operation);
+    }
+
+    @Override
+    public void runBatch()
+        throws IOException {
+        finishBatches();
+        if (failed) {
+            skipped += operations.size();
+            operations.clear();
+        } else if (!execute(new Batch(0, List.of()))) {
+            failed = true;
+        }
+    }
+
+    @Override
+    public void runBatch(final int number,
+                         final List<Integer> dependsOn)
+        throws IOException {
+        if (number == 1) {
+            // the first batch of a new clone
+            finishBatches();
+        }
+        if (failed) {
+            // added before finishBatches() found the failure
+            skipped += operations.size();
+            operations.clear();
+            return;
+        }
+        final Batch batch = new Batch(number, dependsOn);
+        batches.put(number, batch);
+        if (executor == null) {
+            batch.result = CompletableFuture.completedFuture(batch.run());
+        } else {
+            batch.result = executor.submit(batch::run);
+        }
+    }
+
+    /**
+     * Execute what is left and report the totals.
+     *
+     * @return true if everything was applied
+     * @throws IOException
+     */
+    public boolean finish()
+        throws IOException {
+        finishBatches();
+        if (!failed && !operations.isEmpty()) {
+            runBatch();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (failed) {
+            report.println("Applied " + applied + " operations in " + chunks + " chunks, "
+                               + skipped + " operations were not executed after the failure");
+        } else {
+            report.println("Applied " + applied + " operations in " + chunks + " chunks");
+        }
+        return !failed;
+    }
+
+    /**
+     * Wait for the batches of the clone, then retry the failed ones (and run those held back by them) in order.
+     */
+    private void finishBatches()
+        throws IOException {
+        if (batches.isEmpty()) {
+            return;
+        }
+        for (Batch batch : batches.values()) {
+            get(batch.result);
+        }
+        for (Batch batch : batches.values()) {
+            if (batch.done) {
+                continue;
+            }
+            boolean ready = true;
+            for (int number : batch.dependsOn) {
+                ready &= !batches.containsKey(number) || batches.get(number).done;
+            }
+            if (ready && !batch.failed) {
+                execute(batch);
+            } else if (ready) {
+                report.println("Retrying batch " + batch.number);
+                execute(batch);
+            }
+            if (!batch.done) {
+                failed = true;
+                skipped += batch.operations.size() - batch.next;
+            }
+        }
+        batches.clear();
+    }
+
+    /**
+     * Execute the operations in chunks, starting after the last chunk that succeeded.
+     *
+     * @return true if all were applied
+     */
+    private boolean execute(final Batch batch)
+        throws IOException {
+        while (batch.next < batch.operations.size()) {
+            final int end = chunkSize > 0 ? Math.min(batch.operations.size(), batch.next + chunkSize) : batch.operations.size();
+            final ModelNode composite = new ModelNode();
+            composite.get(ClientConstants.OP).set(COMPOSITE);
+            composite.get(ClientConstants.OP_ADDR).setEmptyList();
+            final ModelNode steps = composite.get(STEPS).setEmptyList();
+            for (ModelNode operation : batch.operations.subList(batch.next, end)) {
+                steps.add(operation);
+            }
+
+            final int chunk = chunks.incrementAndGet();
+            final String prefix = batch.number == 0
+                ? "Chunk " + chunk + ": "
+                : "Chunk " + chunk + " (batch " + batch.number + "): ";
+            final ModelNode result = client.execute(composite);
+            if (FAILED.equals(result.get(ClientConstants.OUTCOME).asString())) {
+                batch.failed = true;
+                print(prefix + (end - batch.next) + " operations rolled back: "
+                          + result.get(ClientConstants.FAILURE_DESCRIPTION).asString());
+                return false;
+            }
+            applied.addAndGet(end - batch.next);
+            print(prefix + (end - batch.next) + " operations applied");
+            batch.next = end;
+        }
+        batch.done = true;
+        return true;
+    }
+
+    private void print(final String line) {
+        synchronized (report) {
+            report.println(line);
+        }
+    }
+
+    private static void get(final Future<Boolean> future)
+        throws IOException {
+        try {
+            future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new java.lang.RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * The operations added since the previous batch ended.
+     */
+    private final class Batch {
+        private final int number;
+        private final List<Integer> dependsOn;
+        private final List<ModelNode> operations;
+        private Future<Boolean> result;
+        // the first operation not applied yet
+        private int next = 0;
+        private volatile boolean done = false;
+        private volatile boolean failed = false;
+
+        private Batch(final int number,
+                      final List<Integer> dependsOn) {
+            this.number = number;
+            this.dependsOn = dependsOn;
+            this.operations = new ArrayList<>(CompositeApplier.this.operations);
+            CompositeApplier.this.operations.clear();
+        }
+
+        /**
+         * Wait for the batches this one depends on, and execute it when they were applied.
+         */
+        private boolean run()
+            throws IOException {
+            for (int number : dependsOn) {
+                final Batch batch = batches.get(number);
+                if (batch != null) {
+                    get(batch.result);
+                    if (!batch.done) {
+                        return false;
+                    }
+                }
+            }
+            return execute(this);
+        }
+    }
+}
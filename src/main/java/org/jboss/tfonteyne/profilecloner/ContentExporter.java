@@ -0,0 +1,208 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.as.controller.client.Operation;
+import org.jboss.as.controller.client.OperationMessageHandler;
+import org.jboss.as.controller.client.OperationResponse;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Exports the content of the deployments of the cloned server-groups, so the clone can be applied
+ * to a domain which does not have the content yet.
+ * <p>
+ * The content of each deployment is streamed from the controller with "read-content" straight into a
+ * file named after its SHA-1 hash, the hash the content repository keeps it by; it is never held in memory
+ * as a whole. A deployment used by several server-groups, or content shared by several deployments, is
+ * exported only once, as is content already in the directory from an earlier run. For each deployment a
+ * "deploy --disabled" command adds the content to the repository of the destination, before the
+ * server-group deployments are cloned.
+ */
+public class ContentExporter {
+
+    private static final String FAILED = "failed";
+    private static final String DEPLOYMENT = "deployment";
+    private static final String READ_CONTENT = "read-content";
+    private static final String CONTENT = "content";
+    private static final String HASH = "hash";
+    private static final String UUID = "uuid";
+
+    private final ModelControllerClient client;
+    private final Path directory;
+
+    // by deployment name, in the order they were first met
+    private final Set<String> deployments = new LinkedHashSet<>();
+    // the hashes exported in this run, each one once
+    private final Map<String, Path> exported = new HashMap<>();
+
+    /**
+     * @param client
+     * @param directory to write the content to
+     * @throws IOException if the directory can not be created
+     */
+    public ContentExporter(final ModelControllerClient client,
+                           final Path directory)
+        throws IOException {
+        this.client = client;
+        this.directory = Files.createDirectories(directory).toAbsolutePath();
+    }
+
+    /**
+     * Add the deployments of a server-group.
+     *
+     * @param serverGroup the address of the server-group in the source
+     * @param filter      to leave out the deployments not cloned, or null
+     * @throws IOException
+     */
+    public void addServerGroup(final AddressStack serverGroup,
+                               final AddressFilter filter)
+        throws IOException {
+        final ModelNode node = new ModelNode();
+        node.get(ClientConstants.OP).set(ClientConstants.READ_CHILDREN_NAMES_OPERATION);
+        serverGroup.setAddress(node);
+        node.get(ClientConstants.CHILD_TYPE).set(DEPLOYMENT);
+
+        final ModelNode result = client.execute(node);
+        if (FAILED.equals(result.get(ClientConstants.OUTCOME).asString())) {
+            throw new java.lang.RuntimeException(result.asString());
+        }
+        for (ModelNode name : result.get(ClientConstants.RESULT).asList()) {
+            serverGroup.push(DEPLOYMENT, name.asString());
+            if (filter == null || filter.decide(serverGroup) != AddressFilter.Decision.PRUNE) {
+                deployments.add(name.asString());
+            }
+            serverGroup.pop();
+        }
+    }
+
+    /**
+     * Export the content of the deployments added, each hash once.
+     *
+     * @return the commands adding the content to the destination, or comments for the deployments
+     *         of which the content can not be exported
+     * @throws IOException
+     */
+    public List<String> export()
+        throws IOException {
+        final List<String> commands = new ArrayList<>(deployments.size());
+        for (String name : deployments) {
+            final AddressStack address = new AddressStack(DEPLOYMENT, name);
+            final ModelNode node = new ModelNode();
+            node.get(ClientConstants.OP).set(ClientConstants.READ_RESOURCE_OPERATION);
+            address.setAddress(node);
+            final ModelNode result = client.execute(node);
+            if (FAILED.equals(result.get(ClientConstants.OUTCOME).asString())) {
+                throw new java.lang.RuntimeException(result.asString());
+            }
+            final ModelNode deployment = result.get(ClientConstants.RESULT);
+            final ModelNode content = deployment.get(CONTENT).isDefined() ? deployment.get(CONTENT).get(0) : new ModelNode();
+            if (!content.hasDefined(HASH)) {
+                commands.add("# " + address + ": not managed content, copy it by hand");
+                continue;
+            }
+            final String hash = hex(content.get(HASH).asBytes());
+            Path file = exported.get(hash);
+            if (file == null) {
+                file = directory.resolve(hash);
+                if (!Files.exists(file)) {
+                    final String failure = readContent(address, hash, file);
+                    if (failure != null) {
+                        commands.add("# " + address + ": the content could not be exported: " + failure);
+                        continue;
+                    }
+                }
+                exported.put(hash, file);
+            }
+            commands.add("deploy " + file + " --name=" + name
+                         + " --runtime-name=" + deployment.get("runtime-name").asString(name) + " --disabled");
+        }
+        return commands;
+    }
+
+    /**
+     * Stream the content into the file, checking its hash on the way.
+     *
+     * @return the failure, or null when exported
+     */
+    private String readContent(final AddressStack address,
+                               final String hash,
+                               final Path file)
+        throws IOException {
+        final ModelNode node = new ModelNode();
+        node.get(ClientConstants.OP).set(READ_CONTENT);
+        address.setAddress(node);
+
+        try (OperationResponse response = client.executeOperation(Operation.Factory.create(node), OperationMessageHandler.DISCARD)) {
+            final ModelNode result = response.getResponseNode();
+            if (FAILED.equals(result.get(ClientConstants.OUTCOME).asString())) {
+                return result.get(ClientConstants.FAILURE_DESCRIPTION).asString();
+            }
+            final OperationResponse.StreamEntry stream = response.getInputStream(result.get(ClientConstants.RESULT, UUID).asString());
+            if (stream == null) {
+                return "no content stream in the response";
+            }
+            // written aside, so an interrupted export is not taken as done by the next run
+            final Path written = Files.createTempFile(directory, hash, ".tmp");
+            try {
+                final MessageDigest digest = sha1();
+                try (InputStream in = new DigestInputStream(stream.getStream(), digest)) {
+                    Files.copy(in, written, StandardCopyOption.REPLACE_EXISTING);
+                }
+                final String read = hex(digest.digest());
+                if (!hash.equals(read)) {
+                    return "the content read has hash " + read;
+                }
+                Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(written);
+            }
+        }
+        return null;
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
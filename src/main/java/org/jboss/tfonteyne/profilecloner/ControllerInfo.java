@@ -0,0 +1,153 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * The facts about a controller the cloners need, read with a single round trip
+ * the first time they are asked for, and shared by all cloners using the same client.
+ * A {@link TracingClient} shares them with the client it traces, which a daemon keeps
+ * from one request to the next.
+ */
+public class ControllerInfo {
+
+    private static final String FAILED = "failed";
+
+    private static final String VERSION_MAJOR = "management-major-version";
+    private static final String VERSION_MINOR = "management-minor-version";
+    private static final String VERSION_MICRO = "management-micro-version";
+    private static final String PROCESS_TYPE = "process-type";
+    private static final String PRODUCT_NAME = "product-name";
+    private static final String PRODUCT_VERSION = "product-version";
+
+    private static final Map<ModelControllerClient, ControllerInfo> CACHE =
+        Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final int majorVersion;
+    private final int minorVersion;
+    private final int microVersion;
+    // null when the controller does not report its process type
+    private final Boolean domain;
+    private final String productName;
+    private final String productVersion;
+
+    private ControllerInfo(final ModelNode root) {
+        majorVersion = root.get(VERSION_MAJOR).asInt();
+        minorVersion = root.get(VERSION_MINOR).asInt(0);
+        microVersion = root.get(VERSION_MICRO).asInt(0);
+        // "Domain Controller" or "Host Controller" versus "Server"
+        final String processType = root.get(PROCESS_TYPE).asStringOrNull();
+        domain = processType == null ? null : processType.endsWith("Controller");
+        productName = root.get(PRODUCT_NAME).asStringOrNull();
+        productVersion = root.get(PRODUCT_VERSION).asStringOrNull();
+    }
+
+    /**
+     * @param client
+     * @return the information for this client, read on first use
+     * @throws IOException
+     */
+    public static ControllerInfo of(final ModelControllerClient client)
+        throws IOException {
+        final ModelControllerClient key = client instanceof TracingClient ? ((TracingClient) client).getClient() : client;
+        final ControllerInfo info = CACHE.get(key);
+        if (info != null) {
+            return info;
+        }
+        // read without holding the lock, a slow controller does not hold up the others;
+        // at worst two cloners read the same at the same time
+        final ControllerInfo read = new ControllerInfo(read(client));
+        final ControllerInfo previous = CACHE.putIfAbsent(key, read);
+        return previous == null ? read : previous;
+    }
+
+    private static ModelNode read(final ModelControllerClient client)
+        throws IOException {
+        final ModelNode node = new ModelNode();
+        node.get(ClientConstants.OP).set(ClientConstants.READ_RESOURCE_OPERATION);
+        node.get(ClientConstants.OP_ADDR).setEmptyList();
+        node.get("attributes-only").set(true);
+        node.get(ClientConstants.INCLUDE_RUNTIME).set(true);
+
+        final ModelNode result = client.execute(node);
+        if (FAILED.equals(result.get(ClientConstants.OUTCOME).asString())) {
+            throw new java.lang.RuntimeException(result.asString());
+        }
+        return result.get(ClientConstants.RESULT);
+    }
+
+    public int getMajorVersion() {
+        return majorVersion;
+    }
+
+    public int getMinorVersion() {
+        return minorVersion;
+    }
+
+    public int getMicroVersion() {
+        return microVersion;
+    }
+
+    /**
+     * Only for a client without a CommandContext, such as a snapshot: when connected,
+     * {@link org.jboss.as.cli.CommandContext#isDomainMode()} is the one to ask.
+     *
+     * @return true when connected to a domain (or host) controller
+     * @throws IllegalStateException if the controller does not report its process type
+     */
+    public boolean isDomain() {
+        if (domain == null) {
+            throw new IllegalStateException("The controller does not report its process-type");
+        }
+        return domain;
+    }
+
+    /**
+     * @return the product name, or null for servers which do not report it
+     */
+    public String getProductName() {
+        return productName;
+    }
+
+    /**
+     * @return the product version, or null for servers which do not report it
+     */
+    public String getProductVersion() {
+        return productVersion;
+    }
+
+    /**
+     * @return the compatibility rules for this management version
+     */
+    public AddressRules getRules() {
+        return AddressRules.forVersion(majorVersion);
+    }
+
+    @Override
+    public String toString() {
+        return (productName == null ? "" : productName + " " + productVersion + ", ")
+            + "management version " + majorVersion + "." + minorVersion + "." + microVersion
+            + (domain == null ? "" : domain ? ", domain" : ", standalone");
+    }
+}
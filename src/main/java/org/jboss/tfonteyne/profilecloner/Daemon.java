@@ -0,0 +1,383 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.as.cli.CommandContext;
+import org.jboss.as.cli.CommandLineException;
+
+/**
+ * Serves clone requests over HTTP on the loopback interface, keeping the JVM warm and the connections
+ * to the controllers open between the requests.
+ * <p>
+ * A request is a POST to "/clone" with the arguments as the body, one per line, as on the command line;
+ * the options the daemon was started with come first, so the controller and credentials are given once.
+ * A request can only add the elements to clone and the options of {@link #REQUEST_OPTIONS}: nothing which
+ * writes to a controller, connects elsewhere, or writes files. The commands (or operations, see --format)
+ * are streamed back as they are generated. Invalid arguments get a 400 with the usage. A failure once the
+ * output has started ends it with a line starting with "# failed: ", as the status was sent already.
+ * <p>
+ * Each request must carry the token of the daemon in the {@link #TOKEN_HEADER} header: the value of the
+ * {@link #TOKEN_VARIABLE} environment variable, or a random one printed when the daemon starts. Requests
+ * with a Host or Origin other than the loopback interface are refused, against web pages posting to it.
+ * <p>
+ * One connection is kept per controller and credentials, shared by the requests running at the same time.
+ * When a request using it fails, the next requests connect again; the requests still using the old
+ * connection finish with it, and the last one closes it.
+ */
+public class Daemon {
+
+    /**
+     * Connects to a controller, once per controller and credentials.
+     */
+    @FunctionalInterface
+    interface Connector {
+        CommandContext connect()
+            throws CommandLineException;
+    }
+
+    static final String TOKEN_HEADER = "X-Profilecloner-Token";
+    static final String TOKEN_VARIABLE = "PROFILECLONER_DAEMON_TOKEN";
+
+    /**
+     * The options a request may add: how to clone, not where from, where to, or which files to write.
+     * Those ending with "=" take a value.
+     */
+    static final List<String> REQUEST_OPTIONS = List.of(
+        "--diff", "--single-batch", "--batch-size=", "--format=", "--lazy", "--lazy=",
+        "--include=", "--exclude=", "--add-deployments=", "-ad", "--threads=");
+
+    private static final Set<String> LOOPBACK_HOSTS = Set.of("localhost", "127.0.0.1", "[::1]", "::1");
+
+    private final List<String> defaults;
+    private final byte[] token;
+    private final HttpServer server;
+    // guarded by this
+    private final Map<String, Connection> connections = new HashMap<>();
+    // all connections still in use or kept, including the broken ones, guarded by this
+    private final Map<CommandContext, Connection> inUse = new IdentityHashMap<>();
+
+    private static final class Connection {
+        private final CommandContext context;
+        private int users;
+        private boolean broken;
+
+        private Connection(final CommandContext context) {
+            this.context = context;
+        }
+
+        private boolean isUsable() {
+            return !broken && !context.isTerminated() && context.getModelControllerClient() != null;
+        }
+    }
+
+    /**
+     * @param port     to listen on, on the loopback interface only
+     * @param threads  the number of requests handled at the same time
+     * @param defaults the options given to all requests, before their own
+     * @param token    the requests must carry in the {@link #TOKEN_HEADER} header
+     * @throws IOException if the port can not be bound
+     */
+    public Daemon(final int port,
+                  final int threads,
+                  final List<String> defaults,
+                  final String token)
+        throws IOException {
+        this.defaults = defaults;
+        this.token = token.getBytes(StandardCharsets.UTF_8);
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/clone", this::handle);
+        final AtomicInteger count = new AtomicInteger();
+        server.setExecutor(Executors.newFixedThreadPool(threads, runnable ->
+            new Thread(runnable, "profilecloner-request-" + count.incrementAndGet())));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * Stop listening, and close the connections.
+     */
+    public void stop() {
+        server.stop(0);
+        final List<CommandContext> open;
+        synchronized (this) {
+            open = new ArrayList<>(inUse.keySet());
+            inUse.clear();
+            connections.clear();
+        }
+        open.forEach(CommandContext::terminateSession);
+    }
+
+    /**
+     * @param user       to connect as
+     * @param password   of the user, only a hash of which is kept
+     * @param controller the host
+     * @param port       of the controller
+     * @return the key of the connection for {@link #connect(String, Connector)}
+     */
+    static String key(final String user,
+                      final String password,
+                      final String controller,
+                      final int port) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256")
+                .digest(String.valueOf(password).getBytes(StandardCharsets.UTF_8));
+            return user + "@" + controller + ":" + port + "#" + Base64.getEncoder().encodeToString(hash);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param key       the controller and credentials, see {@link #key(String, String, String, int)}
+     * @param connector to make the connection when there is none yet
+     * @return the connection kept for the key, to be given back with {@link #release(CommandContext, boolean)}
+     */
+    CommandContext connect(final String key,
+                           final Connector connector)
+        throws CommandLineException {
+        synchronized (this) {
+            final Connection connection = connections.get(key);
+            if (connection != null && connection.isUsable()) {
+                connection.users++;
+                return connection.context;
+            }
+        }
+        // connect outside of the lock; at worst two requests connect at the same time, and one connection
+        // is closed again
+        final CommandContext made = connector.connect();
+        final List<CommandContext> close = new ArrayList<>();
+        final CommandContext context;
+        synchronized (this) {
+            Connection connection = connections.get(key);
+            if (connection != null && connection.isUsable()) {
+                close.add(made);
+            } else {
+                if (connection != null) {
+                    drop(connection, close);
+                }
+                connection = new Connection(made);
+                connections.put(key, connection);
+                inUse.put(made, connection);
+            }
+            connection.users++;
+            context = connection.context;
+        }
+        close.forEach(CommandContext::terminateSession);
+        return context;
+    }
+
+    /**
+     * Give back a connection when a request is done with it. When the request failed on it, the connection
+     * is not given to new requests any more, and closed by the last request using it.
+     *
+     * @param context as returned by {@link #connect(String, Connector)}
+     * @param failed  whether the connection failed during the request
+     */
+    void release(final CommandContext context,
+                 final boolean failed) {
+        final List<CommandContext> close = new ArrayList<>();
+        synchronized (this) {
+            final Connection connection = inUse.get(context);
+            if (connection == null) {
+                // closed by stop()
+                return;
+            }
+            connection.users--;
+            if (failed || !connection.isUsable()) {
+                // also closes a connection dropped by another request, once this was its last user
+                drop(connection, close);
+            }
+        }
+        close.forEach(CommandContext::terminateSession);
+    }
+
+    /**
+     * Stop giving out the connection, and close it when no request uses it.
+     */
+    private void drop(final Connection connection,
+                      final List<CommandContext> close) {
+        connection.broken = true;
+        connections.values().remove(connection);
+        if (connection.users == 0) {
+            inUse.remove(connection.context);
+            close.add(connection.context);
+        }
+    }
+
+    private void handle(final HttpExchange exchange)
+        throws IOException {
+        try {
+            if (!isLoopback(exchange) || !hasToken(exchange)) {
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().add("Allow", "POST");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            final List<String> args = new ArrayList<>(defaults);
+            for (String line : new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8).split("\\R")) {
+                final String arg = line.strip();
+                if (arg.isEmpty()) {
+                    continue;
+                }
+                if (arg.startsWith("-") && !isRequestOption(arg)) {
+                    sendText(exchange, 400, "Not allowed in a request: " + arg + "\nThe options a request may add are "
+                                            + String.join(" ", REQUEST_OPTIONS) + "\n");
+                    return;
+                }
+                args.add(arg);
+            }
+
+            final Main request = new Main(this);
+            final ByteArrayOutputStream messages = new ByteArrayOutputStream();
+            final PrintStream messageStream = new PrintStream(messages, true, Charset.defaultCharset());
+            if (!request.parse(args.toArray(new String[0]), messageStream)) {
+                sendText(exchange, 400, messages.toString(Charset.defaultCharset()));
+                return;
+            }
+
+            exchange.getResponseHeaders().add("Content-Type", request.getContentType());
+            // streamed, the length is not known up front
+            exchange.sendResponseHeaders(200, 0);
+            final OutputStream out = exchange.getResponseBody();
+            final PrintStream console = new PrintStream(out, false, Charset.defaultCharset());
+            try {
+                request.execute(console);
+            } catch (final CommandLineException | IOException | RuntimeException e) {
+                console.println("# failed: " + e);
+            }
+            console.flush();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void sendText(final HttpExchange exchange,
+                                 final int status,
+                                 final String text)
+        throws IOException {
+        final byte[] body = text.getBytes(Charset.defaultCharset());
+        exchange.getResponseHeaders().add("Content-Type", "text/plain; charset=" + Charset.defaultCharset().name());
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    static boolean isRequestOption(final String arg) {
+        for (String option : REQUEST_OPTIONS) {
+            if (option.endsWith("=") ? arg.startsWith(option) : arg.equals(option)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean hasToken(final HttpExchange exchange) {
+        final String sent = exchange.getRequestHeaders().getFirst(TOKEN_HEADER);
+        return sent != null && MessageDigest.isEqual(token, sent.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The server only listens on the loopback interface, but a web page can still make a browser post to it:
+     * the Host then names the site (DNS rebinding), or the Origin does.
+     */
+    private static boolean isLoopback(final HttpExchange exchange) {
+        final String host = exchange.getRequestHeaders().getFirst("Host");
+        if (host == null || !LOOPBACK_HOSTS.contains(hostName(host))) {
+            return false;
+        }
+        final String origin = exchange.getRequestHeaders().getFirst("Origin");
+        if (origin == null) {
+            return true;
+        }
+        try {
+            final URI uri = new URI(origin);
+            return "http".equals(uri.getScheme()) && uri.getHost() != null && LOOPBACK_HOSTS.contains(uri.getHost());
+        } catch (final URISyntaxException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param host the value of a Host header: name, name:port, [ipv6] or [ipv6]:port
+     */
+    private static String hostName(final String host) {
+        if (host.startsWith("[")) {
+            final int end = host.indexOf(']');
+            return end < 0 ? host : host.substring(0, end + 1);
+        }
+        final int colon = host.indexOf(':');
+        return (colon < 0 ? host : host.substring(0, colon)).toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the token of {@link #TOKEN_VARIABLE}, or a new random one
+     */
+    static String token() {
+        final String token = System.getenv(TOKEN_VARIABLE);
+        if (token != null && !token.isEmpty()) {
+            return token;
+        }
+        final byte[] random = new byte[24];
+        new SecureRandom().nextBytes(random);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+    }
+
+    /**
+     * @param args the options of the daemon, without the --daemon itself
+     * @return the options, for the requests to start from
+     */
+    static List<String> defaults(final String[] args) {
+        final List<String> defaults = new ArrayList<>(Arrays.asList(args));
+        defaults.removeIf(arg -> arg.startsWith("--daemon"));
+        return defaults;
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.function.Function;
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.ModelType;
+
+/**
+ * Orders sibling resources so that a resource providing a capability is added before
+ * the resources referencing it, as needed when everything goes out in one single batch.
+ * <p>
+ * The capabilities a resource provides, and the ones its defined attributes reference, are
+ * taken from the (recursive) resource description. The sets are collected for each whole
+ * subtree, as the children are added right after their parent; those of each resource on its own
+ * are kept as well, for the split batches of {@link GenericCloner#setBatchSize(int)}. Resources are
+ * known by identity, so the nodes to sort must be the ones of the model the order was built from.
+ * <p>
+ * Controllers without capabilities (before WildFly 10) describe no references at all,
+ * in which case the model order is kept.
+ */
+public class DependencyOrder {
+
+    private static final String ATTRIBUTES = "attributes";
+    private static final String CHILDREN = "children";
+    private static final String MODEL_DESCRIPTION = "model-description";
+    private static final String CAPABILITIES = "capabilities";
+    private static final String CAPABILITY_REFERENCE = "capability-reference";
+    private static final String VALUE_TYPE = "value-type";
+    private static final String DYNAMIC = "dynamic";
+    private static final String NAME = "name";
+
+    private final Map<ModelNode, Dependencies> resources = new IdentityHashMap<>();
+    // of the resource itself, without the resources below it
+    private final Map<ModelNode, Dependencies> own = new IdentityHashMap<>();
+
+    /**
+     * Collect the capabilities of a resource and everything below it.
+     *
+     * @param name        the value of the last element of the address of the resource
+     * @param resource    the result of a recursive read-resource
+     * @param description the result of a recursive read-resource-description of the same address
+     */
+    public void add(final String name,
+                    final ModelNode resource,
+                    final ModelNode description) {
+        walk(name, resource, description);
+    }
+
+    /**
+     * Sort the items in a stable way (Kahn's algorithm, always taking the first one in the original order
+     * which has nothing left to wait for, from a priority queue). Items caught in a cycle keep their
+     * original order.
+     *
+     * @param items
+     * @param resource gets the resource node of an item
+     * @return a new list, or the given one if no item depends on another
+     */
+    public <T> List<T> sort(final List<T> items,
+                            final Function<T, ModelNode> resource) {
+        final int size = items.size();
+        if (size < 2) {
+            return items;
+        }
+        final List<Dependencies> dependencies = new ArrayList<>(size);
+        final Map<String, List<Integer>> providers = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            final Dependencies d = resources.getOrDefault(resource.apply(items.get(i)), Dependencies.NONE);
+            dependencies.add(d);
+            for (String capability : d.provides) {
+                providers.computeIfAbsent(capability, c -> new ArrayList<>()).add(i);
+            }
+        }
+
+        // the items each one is waiting for, and the reverse
+        final int[] waitingFor = new int[size];
+        final List<List<Integer>> dependents = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            dependents.add(new ArrayList<>(0));
+        }
+        boolean any = false;
+        for (int i = 0; i < size; i++) {
+            final Set<Integer> required = new HashSet<>();
+            for (Requirement requirement : dependencies.get(i).requires) {
+                List<Integer> found = providers.get(requirement.full);
+                if (found == null) {
+                    found = providers.get(requirement.base);
+                }
+                if (found != null) {
+                    required.addAll(found);
+                }
+            }
+            required.remove(i);
+            for (int j : required) {
+                dependents.get(j).add(i);
+                waitingFor[i]++;
+                any = true;
+            }
+        }
+        if (!any) {
+            return items;
+        }
+
+        // the items with nothing left to wait for, the first in the original order on top
+        final PriorityQueue<Integer> ready = new PriorityQueue<>();
+        for (int i = 0; i < size; i++) {
+            if (waitingFor[i] == 0) {
+                ready.add(i);
+            }
+        }
+        final List<T> sorted = new ArrayList<>(size);
+        final boolean[] done = new boolean[size];
+        int first = 0;
+        while (sorted.size() < size) {
+            int next;
+            if (ready.isEmpty()) {
+                // a cycle, break it at the first item left
+                while (done[first]) {
+                    first++;
+                }
+                next = first;
+            } else {
+                next = ready.poll();
+            }
+            done[next] = true;
+            sorted.add(items.get(next));
+            for (int dependent : dependents.get(next)) {
+                if (--waitingFor[dependent] == 0 && !done[dependent]) {
+                    ready.add(dependent);
+                }
+            }
+        }
+        return sorted;
+    }
+
+    /**
+     * @param resource a resource of the model the order was built from
+     * @return the capabilities the resource itself provides, not those of the resources below it
+     */
+    public Set<String> provides(final ModelNode resource) {
+        return own.getOrDefault(resource, Dependencies.NONE).provides;
+    }
+
+    /**
+     * @param resource  a resource of the model the order was built from
+     * @param providers the providers of each capability known so far
+     * @return the providers of the capabilities the resource itself references, found the same way as
+     *         {@link #sort(List, Function)} does
+     */
+    public <P> Set<P> providers(final ModelNode resource,
+                                final Map<String, ? extends Collection<P>> providers) {
+        final Set<P> found = new HashSet<>();
+        for (Requirement requirement : own.getOrDefault(resource, Dependencies.NONE).requires) {
+            Collection<P> provider = providers.get(requirement.full);
+            if (provider == null) {
+                provider = providers.get(requirement.base);
+            }
+            if (provider != null) {
+                found.addAll(provider);
+            }
+        }
+        return found;
+    }
+
+    private Dependencies walk(final String name,
+                              final ModelNode resource,
+                              final ModelNode description) {
+        final Dependencies self = new Dependencies();
+        final List<Dependencies> below = new ArrayList<>();
+
+        if (description.hasDefined(CAPABILITIES)) {
+            for (ModelNode capability : description.get(CAPABILITIES).asList()) {
+                final String base = capability.get(NAME).asString();
+                // a dynamic capability is registered with the name of the resource appended
+                self.provides.add(capability.get(DYNAMIC).asBoolean(false) ? base + "." + name : base);
+            }
+        }
+
+        if (resource.getType() == ModelType.OBJECT) {
+            final ModelNode attributes = description.get(ATTRIBUTES);
+            final ModelNode children = description.get(CHILDREN);
+            for (String key : resource.keys()) {
+                final ModelNode value = resource.get(key);
+                if (!value.isDefined()) {
+                    continue;
+                }
+                if (attributes.hasDefined(key)) {
+                    references(attributes.get(key), value, self.requires);
+                } else if (children.hasDefined(key) && value.getType() == ModelType.OBJECT) {
+                    final ModelNode types = children.get(key).get(MODEL_DESCRIPTION);
+                    for (String child : value.keys()) {
+                        final ModelNode childDescription = types.hasDefined(child) ? types.get(child) : types.get("*");
+                        below.add(walk(child, value.get(child), childDescription));
+                    }
+                }
+            }
+        }
+
+        if (self.isEmpty() && below.stream().allMatch(Dependencies::isEmpty)) {
+            return Dependencies.NONE;
+        }
+        final Dependencies dependencies = new Dependencies(new HashSet<>(self.provides), new HashSet<>(self.requires));
+        for (Dependencies child : below) {
+            dependencies.provides.addAll(child.provides);
+            dependencies.requires.addAll(child.requires);
+        }
+        if (!self.isEmpty()) {
+            own.put(resource, self);
+        }
+        if (!dependencies.isEmpty()) {
+            resources.put(resource, dependencies);
+        }
+        return dependencies;
+    }
+
+    /**
+     * Collect the capabilities referenced by an attribute value, including those
+     * in the fields of complex attributes.
+     */
+    private static void references(final ModelNode description,
+                                   final ModelNode value,
+                                   final Set<Requirement> requires) {
+        if (description.hasDefined(CAPABILITY_REFERENCE)) {
+            final String base = description.get(CAPABILITY_REFERENCE).asString();
+            if (value.getType() == ModelType.LIST) {
+                for (ModelNode element : value.asList()) {
+                    requires.add(new Requirement(base, element));
+                }
+            } else {
+                requires.add(new Requirement(base, value));
+            }
+        }
+        final ModelNode fields = description.get(VALUE_TYPE);
+        if (fields.getType() != ModelType.OBJECT) {
+            return;
+        }
+        if (value.getType() == ModelType.LIST) {
+            for (ModelNode element : value.asList()) {
+                references(fields, element, requires);
+            }
+        } else if (value.getType() == ModelType.OBJECT) {
+            for (String field : fields.keys()) {
+                if (value.hasDefined(field)) {
+                    references(fields.get(field), value.get(field), requires);
+                }
+            }
+        }
+    }
+
+    private static final class Dependencies {
+        private static final Dependencies NONE = new Dependencies(Collections.emptySet(), Collections.emptySet());
+
+        private final Set<String> provides;
+        private final Set<Requirement> requires;
+
+        private Dependencies() {
+            this(new HashSet<>(), new HashSet<>());
+        }
+
+        private Dependencies(final Set<String> provides,
+                             final Set<Requirement> requires) {
+            this.provides = provides;
+            this.requires = requires;
+        }
+
+        private boolean isEmpty() {
+            return provides.isEmpty() && requires.isEmpty();
+        }
+    }
+
+    /**
+     * A referenced capability; the full name of a dynamic one is only known from the attribute value.
+     */
+    private static final class Requirement {
+        private final String base;
+        private final String full;
+
+        private Requirement(final String base,
+                            final ModelNode value) {
+            this.base = base;
+            this.full = value.getType() == ModelType.OBJECT || value.getType() == ModelType.LIST
+                ? base
+                : base + "." + value.asString();
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            return other instanceof Requirement && full.equals(((Requirement) other).full);
+        }
+
+        @Override
+        public int hashCode() {
+            return full.hashCode();
+        }
+    }
+}
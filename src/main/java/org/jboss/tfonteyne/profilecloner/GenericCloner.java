@@ -18,10 +18,16 @@ package org.jboss.tfonteyne.profilecloner;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.StringJoiner;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Future;
 import org.jboss.as.cli.CommandLineException;
 import org.jboss.as.controller.client.ModelControllerClient;
 import org.jboss.as.controller.client.helpers.ClientConstants;
@@ -30,32 +36,46 @@ import org.jboss.dmr.ModelType;
 
 /**
  * Clones any "/name=value" root whether in standalone or in domain 
- * and delivers the CLI statement as a batch.
+ * and delivers the CLI statement as a batch, or the same as DMR operations.
  */
 public class GenericCloner implements Cloner {
 
-    private static final String VERSION_MAJOR = "management-major-version";
-    private static final String VERSION_MICRO = "management-micro-version";
-    private static final String VERSION_MINOR = "management-minor-version";
-
-    // mostly for reference, used for compatibility exceptions
-    private static final int EAP6 = 1;
-    private static final int WILDFLY8 = 2;
-    private static final int WILDFLY9 = 3;
-    private static final int WILDFLY10 = 4; // == EAP 7
-    
-    private static final String FAILED = "failed";
-
     private final ModelControllerClient client;
     private final String elementName;
-    private final String destinationName;
 
     private final AddressStack destinationAddress;
     private final AddressStack sourceAddress;
 
     private final boolean addDeployments;
 
-    private int managementMajorVersion = 0;
+    private final AddressRules rules;
+
+    private boolean diff = false;
+    private boolean ordered = false;
+    private boolean batch = true;
+    private int batchSize = 0;
+    private int lazy = 0;
+    private LevelReader reader;
+    // the include/exclude patterns, for this source; null to clone everything
+    private AddressFilter filter;
+    // the whole source is left out by the filter
+    private boolean filtered = false;
+    // generating DMR operations instead of CLI commands
+    private boolean operations = false;
+
+    private ModelFetcher.Fetch source;
+    private ModelFetcher.Fetch description;
+    private DependencyOrder order;
+    private Batches batches;
+    private ModelFetcher.Fetch destinationNames;
+    private ModelFetcher fetcher;
+    private CloneMetrics.Root counts;
+    // to render the attribute values of the resource being cloned, and of the existing one when diffing
+    private final StringBuilder values = new StringBuilder();
+    private final StringBuilder existingValues = new StringBuilder();
+    // for the JFR events, counted whether there are metrics or not
+    private long resources = 0;
+    private long commands = 0;
 
     /**
      *
@@ -75,7 +95,6 @@ public class GenericCloner implements Cloner {
         throws IOException,
                CommandLineException {
         this.client = client;
-        this.destinationName = destinationName;
         this.addDeployments = addDeployments;
 
         final int pos = source.lastIndexOf("/");
@@ -84,278 +103,916 @@ public class GenericCloner implements Cloner {
         sourceAddress = new AddressStack(source);
         destinationAddress = new AddressStack(source.substring(0, pos) + "/" + elementName + "=" + destinationName);
 
-        managementMajorVersion = this.getManagementVersion(client, VERSION_MAJOR);
+        // shared by all cloners on this client, only the first one causes a round trip
+        rules = ControllerInfo.of(client).getRules();
     }
 
-    @Override
-    public List<String> copy() 
-        throws IOException,
-               CommandLineException {
-        final List<String> commands = new LinkedList<>();
-        commands.add("batch");
-        commands.addAll(processChildResource(elementName, getSource(sourceAddress)));
-        commands.add("run-batch");
-        return commands;
+    /**
+     * In diff mode the existing destination is read as well, and only the operations
+     * needed to make it equal to the source are generated: "add" for missing resources,
+     * "remove" for resources not in the source, and "write-attribute"/"undefine-attribute"
+     * for differing attributes. When the destination does not exist, it is cloned as usual.
+     * <p>
+     * Only whether the destination exists is asked in the composite of the run: reading a destination
+     * which does not exist would fail the whole composite. The destination itself is read with one more
+     * round trip when it does.
+     *
+     * @param diff
+     */
+    public void setDiff(final boolean diff) {
+        this.diff = diff;
     }
 
-    private int getManagementVersion(final ModelControllerClient client,
-                                     final String version)
-        throws IOException {
-        final ModelNode node = new ModelNode();
-        node.get(ClientConstants.OP).set(ClientConstants.READ_ATTRIBUTE_OPERATION);
-        node.get(ClientConstants.NAME).set(version);
-        final ModelNode result = client.execute(node);
-        if (FAILED.equals(result.get(ClientConstants.OUTCOME).asString())) {
-            throw new java.lang.RuntimeException(result.asString());
-        }
-        return result.get(ClientConstants.RESULT).asInt();
+    /**
+     * Add sibling resources (e.g. the subsystems of a profile) in the order of their capability
+     * references instead of the model order, see {@link DependencyOrder}.
+     *
+     * @param ordered
+     */
+    public void setOrdered(final boolean ordered) {
+        this.ordered = ordered;
     }
 
-    private ModelNode getSource(final AddressStack source)
-        throws IOException, 
-               CommandLineException {
-        final ModelNode node = new ModelNode();
-        node.get(ClientConstants.OP).set(ClientConstants.READ_RESOURCE_OPERATION);
-        source.setAddress(node);
-        node.get(ClientConstants.RECURSIVE).set(true);
-        node.get("include-defaults").set(false);
+    /**
+     * @param batch false to leave out the batch/run-batch, for a caller combining several cloners in one batch
+     */
+    public void setBatch(final boolean batch) {
+        this.batch = batch;
+    }
 
-        final ModelNode result = client.execute(node);
-        if (FAILED.equals(result.get(ClientConstants.OUTCOME).asString())) {
-            throw new java.lang.RuntimeException(result.asString());
-        }
-        return result.get(ClientConstants.RESULT);
+    /**
+     * Split the clone into several batches of at most this many operations (unless a single resource has more
+     * children), each batch starting with a whole child resource. Each batch is numbered, and lists the earlier
+     * batches it depends on: those adding the parents of its resources, and those adding the resources providing
+     * the capabilities its resources reference. Batches not depending on each other can be applied in any order,
+     * or concurrently. For the references, the description of the source is read and the siblings are added
+     * in the order of their capability references, as with {@link #setOrdered(boolean)}.
+     * <p>
+     * In the CLI output, each batch gets a comment line: "# batch 3 of /profile=x, after 1"
+     *
+     * @param batchSize the maximum number of operations, 0 to put everything in one batch
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
     }
 
     /**
-     * Called recursively. Note the special handling of certain nodes due to inconsistencies.
+     * Read the source level by level while cloning, instead of in one recursive read. The children of
+     * the next few siblings are loaded while a resource is cloned, and each subtree is let go once
+     * cloned, so the memory needed follows the widest level instead of the whole model.
+     * See {@link LevelReader}.
+     * <p>
+     * Not for an ordered clone or split batches, which need the whole model up front.
      *
-     * @param elementName
-     * @param source
+     * @param inFlight the number of reads at the same time, and of siblings loaded ahead; 0 to read all at once
+     */
+    public void setLazy(final int inFlight) {
+        this.lazy = inFlight;
+    }
+
+    /**
+     * Only clone the resources the filter keeps. The source is read without the subtrees it leaves out,
+     * see {@link PrunedReader}; with a lazy read, they are not loaded. In diff mode, the resources
+     * left out are left alone in the destination.
+     *
+     * @param filter the include/exclude patterns, on the source addresses
+     */
+    public void setFilter(final AddressFilter filter) {
+        this.filter = filter.forSource(sourceAddress);
+    }
+
+    /**
+     * Count the resources, attributes, commands and bytes of this clone, and what the rules left out.
      *
-     * @return list of commands for the child resource
-     */
-    private List<String> processChildResource(final String elementName,
-                                              final ModelNode source) {
-        final List<String> commands = new LinkedList<>();
-        if (isProperty(source)) {
-            destinationAddress.push(new Address(elementName, source.asProperty().getName()));
-
-            final String addressString = destinationAddress.toString();
-            List<String> attributes = processProperty(source.asProperty().getValue(), commands);
-
-            if (managementMajorVersion < WILDFLY9) {
-                // pre WildFly 9 required special handling of the JGroups protocols which were set
-                // using "add-protocol" instead of the normal "add"
-                if ((addressString.matches(".*/subsystem=\"jgroups\"/stack=.*/protocol=.*"))
-                    // but do not do this for child resources
-                    && (!addressString.matches(".*/subsystem=\"jgroups\"/stack=.*/protocol=.*/.*=.*"))) {
-                    destinationAddress.pop();
-                    commands.add(0, buildAdd("add-protocol", attributes));
-                    return commands;
+     * @param metrics the report the counts of this root are added to
+     */
+    public void setMetrics(final CloneMetrics metrics) {
+        counts = metrics.root(sourceAddress.toString(), destinationAddress.toString());
+    }
+
+    /**
+     * Use an order already built by the caller instead of reading the description again.
+     */
+    void setOrder(final DependencyOrder order) {
+        this.order = order;
+    }
+
+    @Override
+    public void copy(final CommandSink sink) 
+        throws IOException,
+               CommandLineException {
+        operations = false;
+        final String root = destinationAddress.toString();
+        // a split batch is only written once complete, when its dependencies are known for the header
+        final List<String> buffer = new ArrayList<>();
+        if (counts != null) {
+            counts.commandLine = true;
+        }
+        final CommandSink out = new LazyBatchSink(counts == null ? sink : command -> {
+            counts.bytes += CloneMetrics.lineLength(command);
+            sink.add(command);
+        });
+        clone(new Output() {
+            @Override
+            public void batch()
+                throws IOException {
+                if (batchSize == 0) {
+                    out.add(LazyBatchSink.BATCH);
                 }
             }
 
-            // remove deployments if not allowed
-            if (!addDeployments && addressString.matches("/server-group=\".*\"/deployment.*=.*")) {
-                destinationAddress.pop();
-                return commands;
+            @Override
+            public void add(final String operation,
+                            final List<Attribute> attributes)
+                throws IOException {
+                generated(attributes);
+                if (batchSize == 0) {
+                    out.add(buildAdd(operation, attributes));
+                } else {
+                    buffer.add(buildAdd(operation, attributes));
+                }
             }
 
-            // Messaging has a concept "runtime-queue" which shows up even when asked include-runtime=false
-            if (addressString.matches(".*/subsystem=\"messaging\"/hornetq-server=.*/runtime-queue=.*")) {
-                destinationAddress.pop();
-                return commands;
+            @Override
+            public void runBatch()
+                throws IOException {
+                out.add(LazyBatchSink.RUN_BATCH);
+            }
+
+            @Override
+            public void runBatch(final int number,
+                                 final List<Integer> dependsOn)
+                throws IOException {
+                final StringBuilder header = new StringBuilder("# batch ").append(number).append(" of ").append(root);
+                for (int i = 0; i < dependsOn.size(); i++) {
+                    header.append(i == 0 ? ", after " : ",").append(dependsOn.get(i));
+                }
+                out.add(header.toString());
+                out.add(LazyBatchSink.BATCH);
+                for (String command : buffer) {
+                    out.add(command);
+                }
+                out.add(LazyBatchSink.RUN_BATCH);
+                buffer.clear();
+            }
+        });
+    }
+
+    @Override
+    public void apply(final OperationSink sink)
+        throws IOException,
+               CommandLineException {
+        operations = true;
+        final OperationSink out = new LazyBatchSink(sink);
+        clone(new Output() {
+            @Override
+            public void batch() {
+            }
+
+            @Override
+            public void add(final String operation,
+                            final List<Attribute> attributes)
+                throws IOException {
+                generated(attributes);
+                out.add(buildOperation(operation, attributes));
             }
 
-            // JGroups has "protocols" as read-only, but we get it back anyhow -> remove
-            if (addressString.matches(".*/subsystem=\"jgroups\"/stack=.*")) {
-                attributes = attributes.stream()
-                    .filter(a -> !a.startsWith("protocols=["))
-                    .collect(Collectors.toList());
+            @Override
+            public void runBatch()
+                throws IOException {
+                out.runBatch();
+            }
+
+            @Override
+            public void runBatch(final int number,
+                                 final List<Integer> dependsOn)
+                throws IOException {
+                out.runBatch(number, dependsOn);
+            }
+        });
+    }
+
+    private void clone(final Output output)
+        throws IOException {
+        final long start = System.nanoTime();
+        final CloneEvents.CloneRoot event = new CloneEvents.CloneRoot();
+        event.begin();
+        resources = 0;
+        commands = 0;
+        try {
+            cloneRoot(output);
+        } finally {
+            if (counts != null) {
+                counts.nanos += System.nanoTime() - start;
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.source = sourceAddress.toString();
+                event.destination = destinationAddress.toString();
+                event.operations = operations;
+                event.resources = resources;
+                event.commands = commands;
+                event.commit();
             }
+        }
+    }
 
-            // deprecated attributes -> remove
-            if (addressString.matches(".*/subsystem=\"security\"/security-domain=.*/.*=\"classic\"")) {
-                attributes = attributes.stream()
-                    .filter(a -> !a.startsWith("login-modules=["))
-                    .filter(a -> !a.startsWith("policy-modules=["))
-                    .filter(a -> !a.startsWith("provider-modules=["))
-                    .filter(a -> !a.startsWith("trust-modules=["))
-                    .filter(a -> !a.startsWith("mapping-modules=["))
-                    .collect(Collectors.toList());
+    private void cloneRoot(final Output output)
+        throws IOException {
+        if (source == null && !filtered) {
+            // not part of a combined read, read on our own
+            fetch(new ModelFetcher(client));
+        }
+        if (filtered) {
+            if (counts != null) {
+                counts.filteredResources++;
             }
+            return;
+        }
+
+        getOrder();
 
-            // deprecated attributes -> remove
-            if (addressString.matches(".*/subsystem=\"security\"/security-domain=.*/.*=\"jaspi\"")) {
-                attributes = attributes.stream()
-                    .filter(a -> !a.startsWith("auth-modules=["))
-                    .collect(Collectors.toList());
+        if (lazy > 0) {
+            reader = new LevelReader(client, lazy);
+            try {
+                // a copy, as the children are loaded into it and let go again
+                final ModelNode root = source.get().clone();
+                LevelReader.await(reader.load(readAddress(), root));
+                cloneFrom(root, output);
+            } finally {
+                reader.close();
+                reader = null;
             }
+        } else {
+            cloneFrom(getSource(), output);
+        }
+    }
+
+    private void cloneFrom(final ModelNode root,
+                           final Output output)
+        throws IOException {
+        final ModelNode existing = diff ? getExisting() : null;
+        if (!batch) {
+            processRootResource(root, existing, output);
+        } else if (batchSize > 0) {
+            // also takes care of not starting an empty batch
+            batches = new Batches(output);
+            processRootResource(root, existing, batches);
+            batches.runBatch();
+            batches = null;
+        } else {
+            // with a diff there might be nothing to do: the sinks only start a batch
+            // with its first operation, see LazyBatchSink
+            output.batch();
+            processRootResource(root, existing, output);
+            output.runBatch();
+        }
+    }
+
+    /**
+     * @return the order of the source resources, built on first use, or null when not ordered
+     */
+    DependencyOrder getOrder()
+        throws IOException {
+        if ((ordered || batchSize > 0) && order == null && !filtered) {
+            order = new DependencyOrder();
+            order.add(sourceAddress.getValue(sourceAddress.size() - 1), getSource(), description.get());
+        }
+        return order;
+    }
 
-            // deprecated attributes -> remove
-            if (addressString.matches(".*/subsystem=\"security\"/security-domain=.*/.*=\"jaspi\"/login-module-stack=.*")) {
-                attributes = attributes.stream()
-                    .filter(a -> !a.startsWith("login-modules=["))
-                    .collect(Collectors.toList());
+    /**
+     * @return the source, with the subtrees kept by the filter read (once) if it was read without them
+     */
+    private ModelNode getSource()
+        throws IOException {
+        return PrunedReader.complete(client, filter, lazy, sourceAddress, source);
+    }
+
+    @Override
+    public void fetch(final ModelFetcher fetcher) {
+        final AddressFilter.Decision decision = filter == null ? AddressFilter.Decision.ALL : filter.decide(sourceAddress);
+        if (decision == AddressFilter.Decision.PRUNE) {
+            filtered = true;
+            return;
+        }
+        source = fetcher.readSource(sourceAddress, filter, lazy);
+        if ((ordered || batchSize > 0) && order == null) {
+            description = fetcher.readDescription(sourceAddress);
+        }
+        if (diff) {
+            // reading a destination which does not exist would fail the whole composite
+            final ModelNode node = new ModelNode();
+            node.get(ClientConstants.OP).set(ClientConstants.READ_CHILDREN_NAMES_OPERATION);
+            destinationAddress.setAddress(node, destinationAddress.size() - 1);
+            node.get(ClientConstants.CHILD_TYPE).set(elementName);
+            destinationNames = fetcher.add(node);
+            this.fetcher = fetcher;
+        }
+    }
+
+    /**
+     * @return the current destination, or null if it does not exist
+     */
+    private ModelNode getExisting()
+        throws IOException {
+        final String destinationName = destinationAddress.getValue(destinationAddress.size() - 1);
+        for (ModelNode name : destinationNames.get().asList()) {
+            if (destinationName.equals(name.asString())) {
+                return fetcher.readResource(destinationAddress).get();
             }
+        }
+        return null;
+    }
 
-            // These have "name" as read-only, but we get it back anyhow -> remove
-            if (addressString.matches(".*/subsystem=\"logging\"/.*file-handler=.*")
-                || addressString.matches(".*/subsystem=\"batch-jberet\"/thread-pool=.*")
-                || addressString.matches(".*/subsystem=\"jca\"/.*running-threads=.*")
-                || addressString.matches(".*/subsystem=\"ejb3\"/thread-pool=.*")) {
-                attributes = attributes.stream()
-                    .filter(a -> !a.startsWith("name="))
-                    .collect(Collectors.toList());
+    private void processRootResource(final ModelNode source,
+                                     final ModelNode existing,
+                                     final Output output)
+        throws IOException {
+        final CloneEvents.SubsystemTraversal event = beginSubsystem(elementName);
+        final AddressRules.Match match = rules.match(destinationAddress);
+        visited();
+        final List<Child> children = new ArrayList<>();
+        final List<Attribute> attributes = render(source, match, children, values);
+        if (existing == null) {
+            output.add("add", attributes);
+            added(source);
+            processChildren(children, null, output);
+        } else {
+            existing();
+            processDifferences(match, attributes, children, existing, output);
+        }
+        endSubsystem(event);
+    }
+
+    /**
+     * Called recursively. Note the special handling of certain nodes due to inconsistencies,
+     * see {@link AddressRules}.
+     * <p>
+     * The "add" of a resource is written to the sink before any of its children are processed,
+     * so each command is generated exactly once, in the order the batch needs them.
+     *
+     * @param elementName the type of the resource
+     * @param name        of the resource
+     * @param source      the attributes and children of the resource
+     * @param existing    the same resource in the destination, null if it does not exist (or not diffing)
+     * @param output
+     */
+    private void processChildResource(final String elementName,
+                                      final String name,
+                                      final ModelNode source,
+                                      final ModelNode existing,
+                                      final Output output)
+        throws IOException {
+        destinationAddress.push(elementName, name);
+
+        if (isFiltered()) {
+            if (counts != null) {
+                counts.filteredResources++;
             }
+            destinationAddress.pop();
+            return;
+        }
+        final AddressRules.Match match = rules.match(destinationAddress);
+        if (match.isSkip() || (match.isDeployment() && !addDeployments)) {
+            if (counts != null) {
+                if (match.isSkip()) {
+                    counts.skippedResources++;
+                } else {
+                    counts.skippedDeployments++;
+                }
+            }
+            destinationAddress.pop();
+            return;
+        }
+        final CloneEvents.SubsystemTraversal event = beginSubsystem(elementName);
+        visited();
 
+        final List<Child> children = new ArrayList<>();
+        final List<Attribute> attributes = render(source, match, children, values);
+
+        if (existing != null) {
+            existing();
+            processDifferences(match, attributes, children, existing, output);
+            endSubsystem(event);
+            destinationAddress.pop();
+            return;
+        }
+
+        if (match.isAddProtocol()) {
+            destinationAddress.pop();
+            output.add("add-protocol", attributes);
+            destinationAddress.push(elementName, name);
+        } else {
             // The batch failed with the following error (you are remaining in the batch editing mode to have a chance to co
             // rrect the error): {"WFLYCTL0062: Composite operation failed and was rolled back. Steps that failed:" => {"Operation step
             // -270" => "WFLYCTL0446: jacc-policy or alternative(s) [custom-policy] is required"}}
             // /profile="ha-copy"/subsystem="singleton":add(default="default")
             // /profile="ha-copy"/subsystem="singleton"/singleton-policy="default":add(cache-container="server")
             // /profile="ha-copy"/subsystem="singleton"/singleton-policy="default"/election-policy="simple":add()
-            
-            commands.add(0, buildAdd("add", attributes));
-            destinationAddress.pop();
 
-        } else {
-            final String addressString = destinationAddress.toString();
-            List<String> attributes = processProperty(source, commands);
+            output.add("add", attributes);
+        }
+        added(source);
+
+        processChildren(children, null, output);
+        endSubsystem(event);
+        destinationAddress.pop();
+    }
 
-            // profile has "name" as read-only, but we get it back anyhow -> remove
-            if ((addressString.equals("/profile=\"" + destinationName + "\""))) {
-                attributes = attributes.stream()
-                    .filter(a -> !a.startsWith("name="))
-                    .collect(Collectors.toList());
+    /**
+     * @param children
+     * @param existing the children of the resource in the destination by "type=name", or null if it does not exist
+     * @param output
+     */
+    private void processChildren(final List<Child> children,
+                                 final Map<String, Child> existing,
+                                 final Output output)
+        throws IOException {
+        final List<Child> sorted = sort(children);
+        for (int i = 0; i < sorted.size(); i++) {
+            final Child child = sorted.get(i);
+            if (reader != null) {
+                // keep the next siblings loading while this one is cloned
+                for (int next = i; next < Math.min(i + lazy, sorted.size()); next++) {
+                    load(sorted.get(next));
+                }
+                if (child.loading != null) {
+                    LevelReader.await(child.loading);
+                }
+            }
+            if (batches != null) {
+                batches.startChild(child.source);
+            }
+            final Child other = existing == null ? null : existing.get(child.type + "=" + child.name);
+            processChildResource(child.type, child.name, child.source, other == null ? null : other.source, output);
+            if (reader != null) {
+                // done, let the subtree go
+                child.source.clear();
+                child.loading = null;
+            }
+        }
+    }
+
+    /**
+     * Start loading the children of a child resource, unless it is loading already or will not be cloned.
+     */
+    private void load(final Child child) {
+        if (child.loadStarted) {
+            return;
+        }
+        child.loadStarted = true;
+        destinationAddress.push(child.type, child.name);
+        final AddressRules.Match match = rules.match(destinationAddress);
+        if (!match.isSkip() && !(match.isDeployment() && !addDeployments) && !isFiltered()) {
+            child.loading = reader.load(readAddress(), child.source);
+        }
+        destinationAddress.pop();
+    }
+
+    /**
+     * @return true if the filter leaves out the resource on top of the destination address
+     */
+    private boolean isFiltered() {
+        return filter != null && filter.decide(destinationAddress) == AddressFilter.Decision.PRUNE;
+    }
+
+    /**
+     * @return the address in the source of the resource on top of the destination address
+     */
+    private ModelNode readAddress() {
+        final ModelNode address = new ModelNode().setEmptyList();
+        final int root = sourceAddress.size() - 1;
+        for (int i = 0; i < destinationAddress.size(); i++) {
+            address.add(destinationAddress.getName(i), i == root ? sourceAddress.getValue(i) : destinationAddress.getValue(i));
+        }
+        return address;
+    }
+
+    /**
+     * Compare a resource with the one existing in the destination; both are rendered the same way,
+     * so the attributes can be compared on their CLI text (or operation value).
+     */
+    private void processDifferences(final AddressRules.Match match,
+                                    final List<Attribute> attributes,
+                                    final List<Child> children,
+                                    final ModelNode existing,
+                                    final Output output)
+        throws IOException {
+        final List<Child> existingChildren = new ArrayList<>();
+        final Map<String, Attribute> existingAttributes = new LinkedHashMap<>();
+        for (Attribute attribute : render(existing, match, existingChildren, existingValues)) {
+            existingAttributes.put(attribute.name, attribute);
+        }
+
+        for (Attribute attribute : attributes) {
+            if (!attribute.equals(existingAttributes.remove(attribute.name))) {
+                output.add("write-attribute", List.of(new Attribute(ClientConstants.NAME, attribute.name, new ModelNode(attribute.name)),
+                                                      attribute.rename(ClientConstants.VALUE)));
+            }
+        }
+        for (String name : existingAttributes.keySet()) {
+            output.add("undefine-attribute", List.of(new Attribute(ClientConstants.NAME, name, new ModelNode(name))));
+        }
+
+        final Map<String, Child> existingByAddress = new LinkedHashMap<>();
+        for (Child child : existingChildren) {
+            existingByAddress.put(child.type + "=" + child.name, child);
+        }
+        final Map<String, Child> sourceByAddress = new LinkedHashMap<>();
+        for (Child child : children) {
+            sourceByAddress.put(child.type + "=" + child.name, child);
+        }
+
+        // remove first, the source might re-use names in a conflicting way
+        for (Map.Entry<String, Child> entry : existingByAddress.entrySet()) {
+            if (!sourceByAddress.containsKey(entry.getKey())) {
+                removeChildResource(entry.getValue(), output);
             }
+        }
+        processChildren(children, existingByAddress, output);
+    }
+
+    /**
+     * The resource on top of the destination address was added in the current batch.
+     */
+    private void added(final ModelNode source) {
+        if (batches != null) {
+            batches.added(destinationAddress.size(), source);
+        }
+    }
+
+    /**
+     * The resource on top of the destination address already exists.
+     */
+    private void existing() {
+        if (batches != null) {
+            batches.existing(destinationAddress.size());
+        }
+    }
 
-            commands.add(0, buildAdd("add", attributes));
+    /**
+     * @param type of the resource on top of the destination address
+     * @return an event timing the traversal of the subsystem, or null if it is no subsystem
+     */
+    private CloneEvents.SubsystemTraversal beginSubsystem(final String type) {
+        if (!"subsystem".equals(type)) {
+            return null;
+        }
+        final CloneEvents.SubsystemTraversal event = new CloneEvents.SubsystemTraversal();
+        event.begin();
+        // the resources counted so far, until the end
+        event.resources = resources;
+        return event;
+    }
+
+    private void endSubsystem(final CloneEvents.SubsystemTraversal event) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.address = destinationAddress.toString();
+            event.resources = resources - event.resources;
+            event.commit();
         }
-        return commands;
     }
 
+    private void visited() {
+        resources++;
+        if (counts != null) {
+            counts.resources++;
+        }
+    }
+
+    /**
+     * An operation with these parameters was generated.
+     */
+    private void generated(final List<Attribute> attributes) {
+        commands++;
+        if (counts != null) {
+            counts.commands++;
+            counts.attributes += attributes.size();
+        }
+    }
+
+    private List<Child> sort(final List<Child> children) {
+        return order == null ? children : order.sort(children, child -> child.source);
+    }
+
+    private void removeChildResource(final Child child,
+                                     final Output output)
+        throws IOException {
+        destinationAddress.push(child.type, child.name);
+        final AddressRules.Match match = rules.match(destinationAddress);
+        // resources we never clone are left alone, as are those with anything below them left out by the filter
+        if (!match.isSkip() && !(match.isDeployment() && !addDeployments)
+            && (filter == null || filter.decide(destinationAddress) == AddressFilter.Decision.ALL)) {
+            if (match.isAddProtocol()) {
+                destinationAddress.pop();
+                final ModelNode type = new ModelNode(child.name);
+                final StringBuilder text = new StringBuilder();
+                escape(type, text);
+                output.add("remove-protocol", List.of(new Attribute("type", text, 0, text.length(), type)));
+                destinationAddress.push(child.type, child.name);
+            } else {
+                output.add("remove", List.of());
+            }
+        }
+        destinationAddress.pop();
+    }
+
+    /**
+     * The values are copied straight from where they were rendered, into a buffer of the exact size.
+     */
     private String buildAdd(final String command,
-                            final List<String> attributes) {
-        return destinationAddress.toStringBuilder()
-            .append(":").append(command)
-            .append(attributes.stream().collect(Collectors.joining(",", "(", ")")))
-            .toString();
+                            final List<Attribute> attributes) {
+        // address:command(name=value,name=value)
+        int length = destinationAddress.length() + command.length() + 3 + Math.max(0, attributes.size() - 1);
+        for (Attribute attribute : attributes) {
+            length += attribute.name.length() + 1 + attribute.end - attribute.start;
+        }
+        final StringBuilder builder = destinationAddress.appendTo(new StringBuilder(length))
+            .append(':').append(command).append('(');
+        for (int i = 0; i < attributes.size(); i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            final Attribute attribute = attributes.get(i);
+            builder.append(attribute.name).append('=').append(attribute.text, attribute.start, attribute.end);
+        }
+        return builder.append(')').toString();
     }
 
     /**
-     * The bulk of the work is done in here - it will recursively call processChildResource.
+     * The DMR equivalent of {@link #buildAdd(String, List)}.
+     */
+    private ModelNode buildOperation(final String command,
+                                     final List<Attribute> attributes) {
+        final ModelNode operation = new ModelNode();
+        operation.get(ClientConstants.OP).set(command);
+        destinationAddress.setAddress(operation);
+        for (Attribute attribute : attributes) {
+            operation.get(attribute.name).set(attribute.value);
+        }
+        return operation;
+    }
+
+    /**
+     * The attributes of a resource, see {@link #processProperty(ModelNode, AddressRules.Match, List, StringBuilder)}.
+     * <p>
+     * The values are rendered one after the other into a buffer used again for each resource, and then
+     * taken out as one string: copying parts of a string into the command is a lot faster than from a buffer.
+     *
+     * @param out the buffer, cleared first
+     */
+    private List<Attribute> render(final ModelNode resource,
+                                   final AddressRules.Match match,
+                                   final List<Child> children,
+                                   final StringBuilder out) {
+        out.setLength(0);
+        final List<Attribute> attributes = processProperty(resource, match, children, out);
+        if (out.length() > 0) {
+            final String rendered = out.toString();
+            for (Attribute attribute : attributes) {
+                if (attribute.text == out) {
+                    attribute.text = rendered;
+                }
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * The bulk of the work is done in here - child resources found are not descended into,
+     * but collected so they can be processed after the "add" of their parent.
      * <p>
      * There are potentially to many checks on undefined, but heck.. lets be safe
+     * <p>
+     * Object nodes are walked by key: {@link ModelNode#asList()} would deep-copy every child,
+     * and thus the whole subtree below it, on each level.
      *
      * @param root
-     * @param commands
+     * @param match    the rules matching the resource, used to drop attributes
+     * @param children collects the child resources
+     * @param out      the attribute values are rendered into, one after the other
      *
      * @return a list of attributes: name1="val1",name2="val2",...
      */
-    private List<String> processProperty(final ModelNode root,
-                                         final List<String> commands) {
+    private List<Attribute> processProperty(final ModelNode root,
+                                            final AddressRules.Match match,
+                                            final List<Child> children,
+                                            final StringBuilder out) {
         // the attributes for the add() command
-        final List<String> attributes = new ArrayList<>();
-
-        for (ModelNode child : root.asList()) {
-            // theoretically we can only have properties at this level
-            if (isProperty(child)) {
-                final String valueName = child.asProperty().getName();
-                final ModelNode value = child.asProperty().getValue();
+        final List<Attribute> attributes = new ArrayList<>();
 
-                if (isUndefined(value)) {
-                    continue;
+        if (isProperty(root)) {
+            processAttribute(root.asProperty().getName(), root.asProperty().getValue(), match, attributes, children, out);
+        } else if (isObject(root)) {
+            for (String valueName : root.keys()) {
+                processAttribute(valueName, root.get(valueName), match, attributes, children, out);
+            }
+        } else {
+            for (ModelNode child : root.asList()) {
+                // theoretically we can only have properties at this level
+                if (isProperty(child)) {
+                    processAttribute(child.asProperty().getName(), child.asProperty().getValue(), match, attributes, children, out);
+                } else {
+                    throw new IllegalArgumentException("Expected a property, but got " + child.getType());
                 }
+            }
+        }
+        return attributes;
+    }
 
-                if (isList(value) || isPrimitive(value)) {
-                    attributes.add(valueName + "=" + nodeToString(value, commands));
+    private void processAttribute(final String valueName,
+                                  final ModelNode value,
+                                  final AddressRules.Match match,
+                                  final List<Attribute> attributes,
+                                  final List<Child> children,
+                                  final StringBuilder out) {
+        if (isUndefined(value)) {
+            return;
+        }
+        if (match.isExcluded(valueName)) {
+            if (counts != null) {
+                counts.excludedAttributes++;
+            }
+            return;
+        }
 
-                } else if (isProperty(value) || isObject(value)) {
-                    final StringJoiner objectAtrrs = new StringJoiner(",", "{", "}").setEmptyValue("");
+        if (isList(value) || isPrimitive(value)) {
+            if (operations) {
+                attributes.add(new Attribute(valueName, null, 0, 0, nodeToValue(value, children)));
+            } else {
+                final int start = out.length();
+                nodeToString(value, children, out);
+                attributes.add(new Attribute(valueName, out, start, out.length(), null));
+            }
 
-                    for (ModelNode node : value.asList()) {
-                        final String name = node.asProperty().getName();
-                        final ModelNode nodeValue = node.asProperty().getValue();
+        } else if (isProperty(value) || isObject(value)) {
+            // the entries go after the "{", which is taken back again if there are none
+            final int open = out.length();
+            final ModelNode objectValue = operations ? new ModelNode() : null;
+            if (!operations) {
+                out.append('{');
+            }
 
-                        if (isUndefined(nodeValue) || isPrimitive(nodeValue)) {
-                            if (isObject(value)) {
-                                objectAtrrs.add("\"" + name + "\" => " + nodeToString(nodeValue, commands));
-                            } else {
-                                objectAtrrs.add(name + "=" + nodeToString(nodeValue, commands));
-                            }
-                        } else if (isList(nodeValue)) {
-                            objectAtrrs.add(name + "=" + nodeToString(nodeValue, commands));
-                        } else if (isProperty(nodeValue) || isObject(nodeValue)) {
-                            // decend into prop/obj
-                            commands.addAll(processChildResource(valueName, node));
-                        } else {
-                            throw new IllegalArgumentException("Unexpected node type" + value.getType());
-                        }
-                    }
-                    if (objectAtrrs.length() > 0) {
-                        attributes.add(valueName + "=" + objectAtrrs.toString());
-                    }
-                } else {
-                    throw new IllegalArgumentException("Unexpected node type" + value.getType());
+            if (isProperty(value)) {
+                final String name = value.asProperty().getName();
+                final ModelNode nodeValue = value.asProperty().getValue();
+                processObjectEntry(valueName, name, nodeValue, false, out, open, objectValue, children);
+            } else {
+                for (String name : value.keys()) {
+                    processObjectEntry(valueName, name, value.get(name), true, out, open, objectValue, children);
                 }
+            }
+            if (operations) {
+                if (objectValue.isDefined()) {
+                    attributes.add(new Attribute(valueName, null, 0, 0, objectValue));
+                }
+            } else if (out.length() > open + 1) {
+                out.append('}');
+                attributes.add(new Attribute(valueName, out, open, out.length(), null));
             } else {
-                throw new IllegalArgumentException("Expected a property, but got " + child.getType());
+                out.setLength(open);
             }
+        } else {
+            throw new IllegalArgumentException("Unexpected node type" + value.getType());
+        }
+    }
+
+    private void processObjectEntry(final String valueName,
+                                    final String name,
+                                    final ModelNode nodeValue,
+                                    final boolean object,
+                                    final StringBuilder out,
+                                    final int open,
+                                    final ModelNode objectValue,
+                                    final List<Child> children) {
+        if (objectValue != null && (isUndefined(nodeValue) || isPrimitive(nodeValue) || isList(nodeValue))) {
+            objectValue.get(name).set(nodeToValue(nodeValue, children));
+        } else if (isUndefined(nodeValue) || isPrimitive(nodeValue) || isList(nodeValue)) {
+            if (out.length() > open + 1) {
+                out.append(',');
+            }
+            if (object && !isList(nodeValue)) {
+                out.append('"').append(name).append("\" => ");
+            } else {
+                out.append(name).append('=');
+            }
+            nodeToString(nodeValue, children, out);
+        } else if (isProperty(nodeValue) || isObject(nodeValue)) {
+            // decend into prop/obj, after the parent has been added
+            children.add(new Child(valueName, name, nodeValue));
+        } else {
+            throw new IllegalArgumentException("Unexpected node type" + nodeValue.getType());
         }
-        return attributes;
     }
 
     /**
+     * Append the value for a list: ["val1","val2",...]
+     *
      * @param nodes
-     * @param commands
-     * @return the value for a list: ["val1","val2",...]
+     * @param children
+     * @param out
      */
-    private String getList(final ModelNode nodes,
-                           List<String> commands) {
-        StringJoiner joiner = new StringJoiner(",", "[", "]");
+    private void getList(final ModelNode nodes,
+                         final List<Child> children,
+                         final StringBuilder out) {
+        out.append('[');
+        boolean first = true;
         for (ModelNode node : nodes.asList()) {
             if (isProperty(node)) {
-                processProperty(node, commands);
+                // only for the children it may hold, the text is not used
+                final int length = out.length();
+                processProperty(node, AddressRules.Match.NONE, children, out);
+                out.setLength(length);
             } else if (!isUndefined(node)) {
-                String s = nodeToString(node, commands);
-                joiner.add(s);
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                nodeToString(node, children, out);
             }
         }
-        return joiner.toString();
+        out.append(']');
     }
 
     /**
+     * Append the value for an object: {name1="val1",name2="val2",...}
+     *
      * @param nodes
-     * @param commands
-     * @return the value for an object: { "name1" => "val1", "name2 => "val2", ...}
+     * @param children
+     * @param out
      */
-    private String getObject(final ModelNode nodes,
-                             List<String> commands) {
-        return nodes.keys()
-            .stream()
-            .map(key -> key + "=" + nodeToString(nodes.get(key), commands))
-            .collect(Collectors.joining(",", "{", "}"));
+    private void getObject(final ModelNode nodes,
+                           final List<Child> children,
+                           final StringBuilder out) {
+        out.append('{');
+        boolean first = true;
+        for (String key : nodes.keys()) {
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            out.append(key).append('=');
+            nodeToString(nodes.get(key), children, out);
+        }
+        out.append('}');
     }
 
     /**
-     * Convert a node to its String representation.
+     * Append the CLI representation of a node.
      *
      * @param node
-     * @param commands
-     * @return
+     * @param children
+     * @param out
      */
-    private String nodeToString(final ModelNode node,
-                                final List<String> commands) {
+    private void nodeToString(final ModelNode node,
+                              final List<Child> children,
+                              final StringBuilder out) {
         if (isUndefined(node)) {
-            return "undefined";
+            out.append("undefined");
         } else if (isPrimitive(node)) {
-            return escape(node);
+            escape(node, out);
+        } else if (isObject(node)) {
+            getObject(node, children, out);
+        } else if (isList(node)) {
+            getList(node, children, out);
+        } else {
+            throw new IllegalArgumentException("Unknown type: " + node.getType()
+                                                       + ", " + node.toJSONString(false));
+        }
+    }
+
+    /**
+     * The DMR equivalent of {@link #nodeToString(ModelNode, List, StringBuilder)}, leaving out the same parts.
+     *
+     * @param node
+     * @param children
+     * @return
+     */
+    private ModelNode nodeToValue(final ModelNode node,
+                                  final List<Child> children) {
+        if (isUndefined(node) || isPrimitive(node)) {
+            return node;
         } else if (isObject(node)) {
-            return getObject(node, commands);
+            final ModelNode object = new ModelNode().setEmptyObject();
+            for (String key : node.keys()) {
+                object.get(key).set(nodeToValue(node.get(key), children));
+            }
+            return object;
         } else if (isList(node)) {
-            return getList(node, commands);
+            final ModelNode list = new ModelNode().setEmptyList();
+            for (ModelNode element : node.asList()) {
+                if (isProperty(element)) {
+                    processProperty(element, AddressRules.Match.NONE, children, values);
+                } else if (!isUndefined(element)) {
+                    list.add(nodeToValue(element, children));
+                }
+            }
+            return list;
         } else {
             throw new IllegalArgumentException("Unknown type: " + node.getType()
                                                        + ", " + node.toJSONString(false));
@@ -393,13 +1050,252 @@ public class GenericCloner implements Cloner {
     }
 
     /**
-     * escape the value part of a name=value (not of an Address)
+     * escape the value part of a name=value (not of an Address), in one pass
      *
      * @param value
-     *
-     * @return
+     * @param out   the quoted value is appended to
      */
-    private String escape(final ModelNode value) {
-        return "\"" + value.asString().replace("=", "\\=").replace("\"", "\\\"") + "\"";
+    private static void escape(final ModelNode value,
+                               final StringBuilder out) {
+        final String string = value.asString();
+        out.append('"');
+        int from = 0;
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+            if (c == '=' || c == '"') {
+                out.append(string, from, i).append('\\');
+                from = i;
+            }
+        }
+        out.append(string, from, string.length()).append('"');
+    }
+
+    /**
+     * Where the operations go: CLI commands or DMR operations.
+     */
+    private interface Output {
+        void batch()
+            throws IOException;
+
+        void add(String operation,
+                 List<Attribute> attributes)
+            throws IOException;
+
+        void runBatch()
+            throws IOException;
+
+        /**
+         * The end of one of the batches the clone is split in.
+         */
+        default void runBatch(final int number,
+                              final List<Integer> dependsOn)
+            throws IOException {
+            runBatch();
+        }
+    }
+
+    /**
+     * Splits the operations into batches, see {@link #setBatchSize(int)}, starting a batch
+     * with the first operation after the previous one was run.
+     */
+    private final class Batches implements Output {
+        private final Output output;
+        private final Map<ModelNode, Integer> sizes = new IdentityHashMap<>();
+        private final Set<Integer> dependsOn = new TreeSet<>();
+        // the batches adding the resources providing each capability
+        private final Map<String, List<Integer>> providers = new HashMap<>();
+        // the batch each resource on the destination address was added in, 0 if it existed already
+        private int[] added = new int[16];
+        private int last = 0;
+        private int current = 0;
+        private int count = 0;
+
+        private Batches(final Output output) {
+            this.output = output;
+        }
+
+        @Override
+        public void batch() {
+        }
+
+        @Override
+        public void add(final String operation,
+                        final List<Attribute> attributes)
+            throws IOException {
+            if (current == 0) {
+                current = ++last;
+                output.batch();
+            }
+            count++;
+            output.add(operation, attributes);
+        }
+
+        @Override
+        public void runBatch()
+            throws IOException {
+            if (current != 0) {
+                output.runBatch(current, new ArrayList<>(dependsOn));
+                current = 0;
+                count = 0;
+                dependsOn.clear();
+            }
+        }
+
+        /**
+         * Run the current batch first if the child would not fit in it anymore.
+         */
+        private void startChild(final ModelNode child)
+            throws IOException {
+            if (count > 0 && count + size(child) > batchSize) {
+                runBatch();
+            }
+        }
+
+        private void added(final int depth,
+                           final ModelNode resource) {
+            set(depth, current);
+            if (depth > 0 && added[depth - 1] != 0 && added[depth - 1] != current) {
+                dependsOn.add(added[depth - 1]);
+            }
+            if (order != null) {
+                // the siblings are ordered, the providers of what the resource references come first
+                // (but in a cycle of references)
+                for (int provider : order.providers(resource, providers)) {
+                    if (provider != current) {
+                        dependsOn.add(provider);
+                    }
+                }
+                for (String capability : order.provides(resource)) {
+                    providers.computeIfAbsent(capability, c -> new ArrayList<>()).add(current);
+                }
+            }
+        }
+
+        private void existing(final int depth) {
+            set(depth, 0);
+        }
+
+        private void set(final int depth,
+                         final int number) {
+            if (depth >= added.length) {
+                added = Arrays.copyOf(added, depth * 2);
+            }
+            added[depth] = number;
+        }
+
+        /**
+         * @return the number of resources in a subtree, found the same way as {@link #processObjectEntry} does
+         */
+        private int size(final ModelNode resource) {
+            Integer size = sizes.get(resource);
+            if (size == null) {
+                int total = 1;
+                if (isObject(resource)) {
+                    for (String key : resource.keys()) {
+                        final ModelNode value = resource.get(key);
+                        if (isObject(value)) {
+                            for (String name : value.keys()) {
+                                final ModelNode entry = value.get(name);
+                                if (isObject(entry) || isProperty(entry)) {
+                                    total += size(entry);
+                                }
+                            }
+                        }
+                    }
+                }
+                size = total;
+                sizes.put(resource, size);
+            }
+            return size;
+        }
+    }
+
+    /**
+     * An operation parameter, as CLI text or as DMR value depending on what is generated.
+     */
+    private static final class Attribute {
+        private final String name;
+        // the CLI text is the part from start to end, of where it was rendered
+        private CharSequence text;
+        private final int start;
+        private final int end;
+        private final ModelNode value;
+
+        private Attribute(final String name,
+                          final String text,
+                          final ModelNode value) {
+            this(name, text, 0, text.length(), value);
+        }
+
+        private Attribute(final String name,
+                          final CharSequence text,
+                          final int start,
+                          final int end,
+                          final ModelNode value) {
+            this.name = name;
+            this.text = text;
+            this.start = start;
+            this.end = end;
+            this.value = value;
+        }
+
+        /**
+         * @return the same value, under another name
+         */
+        private Attribute rename(final String newName) {
+            return new Attribute(newName, text, start, end, value);
+        }
+
+        @Override
+        public boolean equals(final Object other) {
+            if (!(other instanceof Attribute)) {
+                return false;
+            }
+            final Attribute attribute = (Attribute) other;
+            if (!Objects.equals(value, attribute.value) || (text == null) != (attribute.text == null)) {
+                return false;
+            }
+            if (text == null) {
+                return true;
+            }
+            if (end - start != attribute.end - attribute.start) {
+                return false;
+            }
+            for (int i = 0; i < end - start; i++) {
+                if (text.charAt(start + i) != attribute.text.charAt(attribute.start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = Objects.hashCode(value);
+            for (int i = start; text != null && i < end; i++) {
+                hash = 31 * hash + text.charAt(i);
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * A child resource waiting for its parent to be added.
+     */
+    private static final class Child {
+        private final String type;
+        private final String name;
+        private final ModelNode source;
+        // the loading of its children, when reading lazily
+        private Future<?> loading;
+        private boolean loadStarted;
+
+        private Child(final String type,
+                      final String name,
+                      final ModelNode source) {
+            this.type = type;
+            this.name = name;
+            this.source = source;
+        }
     }
 }
@@ -0,0 +1,95 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.util.List;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Only starts a batch with its first command or operation, as an empty batch can not be run:
+ * with a diff or a filter, there might be nothing to do.
+ * <p>
+ * For commands, a "batch" is held back until the next command, and dropped together with the
+ * "run-batch" right after it. For operations, which have no start of a batch, a run-batch
+ * is only passed on when an operation was added since the previous one.
+ */
+class LazyBatchSink implements CommandSink, OperationSink {
+
+    static final String BATCH = "batch";
+    static final String RUN_BATCH = "run-batch";
+
+    private final CommandSink commands;
+    private final OperationSink operations;
+    // a "batch" not written yet
+    private boolean pending = false;
+    // operations were added since the last run-batch
+    private boolean started = false;
+
+    LazyBatchSink(final CommandSink commands) {
+        this.commands = commands;
+        this.operations = null;
+    }
+
+    LazyBatchSink(final OperationSink operations) {
+        this.commands = null;
+        this.operations = operations;
+    }
+
+    @Override
+    public void add(final String command)
+        throws IOException {
+        if (BATCH.equals(command)) {
+            pending = true;
+            return;
+        }
+        if (pending) {
+            pending = false;
+            if (RUN_BATCH.equals(command)) {
+                return;
+            }
+            commands.add(BATCH);
+        }
+        commands.add(command);
+    }
+
+    @Override
+    public void add(final ModelNode operation)
+        throws IOException {
+        started = true;
+        operations.add(operation);
+    }
+
+    @Override
+    public void runBatch()
+        throws IOException {
+        if (started) {
+            started = false;
+            operations.runBatch();
+        }
+    }
+
+    @Override
+    public void runBatch(final int number,
+                         final List<Integer> dependsOn)
+        throws IOException {
+        if (started) {
+            started = false;
+            operations.runBatch(number, dependsOn);
+        }
+    }
+}
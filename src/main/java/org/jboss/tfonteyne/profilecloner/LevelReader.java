@@ -0,0 +1,178 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.ModelType;
+
+/**
+ * Reads a model level by level instead of in one recursive read, for the lazy traversal
+ * of {@link GenericCloner#setLazy(int)}.
+ * <p>
+ * A resource read without its children holds a placeholder for each child type: an object with an
+ * undefined value for each child. Loading the children replaces each placeholder with the result of a
+ * read-children-resources, again without their children. The reads run on a fixed number of threads,
+ * which limits the number of reads in flight.
+ * <p>
+ * The model does not tell attributes and children apart; an object holding only undefined values is
+ * taken to be a child type, the same way {@link Snapshot} does. When reading its children fails, the
+ * child types of the resource are read: if the controller does not know it as a child type, it is left
+ * as it is, and cloned as an attribute. Any other failure fails the clone, as a recursive read would.
+ */
+public class LevelReader implements Closeable {
+
+    private static final String FAILED = "failed";
+    private static final String READ_CHILDREN_RESOURCES = "read-children-resources";
+    private static final String READ_CHILDREN_TYPES = "read-children-types";
+    private static final String INCLUDE_DEFAULTS = "include-defaults";
+
+    private final ModelControllerClient client;
+    private final ExecutorService executor;
+
+    /**
+     * @param client
+     * @param inFlight the maximum number of reads at the same time
+     */
+    public LevelReader(final ModelControllerClient client,
+                       final int inFlight) {
+        this.client = client;
+        final AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(inFlight, runnable -> {
+            final Thread thread = new Thread(runnable, "profilecloner-read-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Start loading the children of a resource, on a reader thread. The resource must
+     * not be touched until the load is done, see {@link #await(Future)}.
+     *
+     * @param address  of the resource
+     * @param resource read without its children, the placeholders are replaced
+     * @return the pending load
+     */
+    public Future<?> load(final ModelNode address,
+                          final ModelNode resource) {
+        return executor.submit(() -> {
+            loadChildren(address, resource);
+            return null;
+        });
+    }
+
+    /**
+     * @param load as started by {@link #load(ModelNode, ModelNode)}
+     * @throws IOException
+     */
+    public static void await(final Future<?> load)
+        throws IOException {
+        try {
+            load.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new java.lang.RuntimeException(cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private void loadChildren(final ModelNode address,
+                              final ModelNode resource)
+        throws IOException {
+        final List<String> types = new ArrayList<>();
+        for (String key : resource.keys()) {
+            if (isPlaceholder(resource.get(key))) {
+                types.add(key);
+            }
+        }
+        for (String type : types) {
+            final ModelNode node = new ModelNode();
+            node.get(ClientConstants.OP).set(READ_CHILDREN_RESOURCES);
+            node.get(ClientConstants.OP_ADDR).set(address);
+            node.get(ClientConstants.CHILD_TYPE).set(type);
+            node.get(ClientConstants.RECURSIVE).set(false);
+            node.get(INCLUDE_DEFAULTS).set(false);
+
+            final ModelNode result = client.execute(node);
+            if (!FAILED.equals(result.get(ClientConstants.OUTCOME).asString())) {
+                resource.get(type).set(result.get(ClientConstants.RESULT));
+            } else if (isChildType(address, type)) {
+                throw new java.lang.RuntimeException(result.asString());
+            }
+        }
+    }
+
+    /**
+     * @return false if the controller does not know the type as a child type of the resource
+     */
+    private boolean isChildType(final ModelNode address,
+                                final String type)
+        throws IOException {
+        final ModelNode node = new ModelNode();
+        node.get(ClientConstants.OP).set(READ_CHILDREN_TYPES);
+        node.get(ClientConstants.OP_ADDR).set(address);
+
+        final ModelNode result = client.execute(node);
+        if (FAILED.equals(result.get(ClientConstants.OUTCOME).asString())) {
+            throw new java.lang.RuntimeException(result.asString());
+        }
+        for (ModelNode childType : result.get(ClientConstants.RESULT).asList()) {
+            if (type.equals(childType.asString())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param value a value of a resource read without its children
+     * @return true if it is the placeholder of a child type
+     */
+    static boolean isPlaceholder(final ModelNode value) {
+        if (value.getType() != ModelType.OBJECT || value.keys().isEmpty()) {
+            return false;
+        }
+        for (String key : value.keys()) {
+            if (value.get(key).isDefined()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -16,53 +16,126 @@
  */
 package org.jboss.tfonteyne.profilecloner;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.jboss.as.cli.CommandContext;
 import org.jboss.as.cli.CommandContextFactory;
 import org.jboss.as.cli.CommandLineException;
 import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.dmr.ModelNode;
 
 public class Main {
 
     private final static String VERSION = "2025-02-13";
 
-    private static void usage() {
-        System.out.println("JBoss AS 7 / WildFly / JBoss EAP 6  Profile (and more) Cloner - version:" + VERSION);
-        System.out.println("Usage:");
-        System.out.println(
+    private static void usage(final PrintStream out) {
+        out.println("JBoss AS 7 / WildFly / JBoss EAP 6  Profile (and more) Cloner - version:" + VERSION);
+        out.println("Usage:");
+        out.println(
             " java -cp $JBOSS_HOME/bin/client/jboss-cli-client.jar:profilecloner.jar\n"
             + "    org.jboss.tfonteyne.profilecloner.Main\n"
             + "    --controller=<host> --port=<number> --username=<user> --password=<password> \n"
-            + "    --file=<name> --add-deployments=<true|false>\n"
-            + "    /from=value destinationvalue [/from=value destinationvalue] ....\n"
+            + "    --controllers=<host>[:<port>],... --connections=<number>\n"
+            + "    --file=<name> --add-deployments=<true|false> --threads=<number>\n"
+            + "    --capture=<name> [--compress] | --snapshot=<name> --diff --single-batch\n"
+            + "    --apply[=<host>[:<port>]] --chunk-size=<number> --batch-size=<number>\n"
+            + "    --latency=<ms>[:<jitter ms>] --metrics=<name> --lazy[=<number>] --format=<cli|json|dmr>\n"
+            + "    --include=<pattern>,... --exclude=<pattern>,...\n"
+            + "    --cache=<directory> --cache-ttl=<minutes> --cache-size=<MB> --daemon=<port>\n"
+            + "    --export-content=<directory>\n"
+            + "    /from=value destinationvalue[,destinationvalue...] [/from=value destinationvalue] ....\n"
             + "\n"
             + "Options:\n"
             + "  --controller=<host> | -c <host>       : Defaults to the setting in jboss-cli.xml if you have one,\n"
             + "  --port=<port>                           or localhost and 9999 (wildfly:9990)\n"
+            + "  --controllers=<host>[:<port>],...     : Clone from each of these controllers (same credentials), each one\n"
+            + "                                          to its own file: the host is added to the --file name (default clone.cli),\n"
+            + "                                          and to those of --capture and --metrics; a failing controller does not stop the others\n"
+            + "  --connections=<number>                : With --controllers, the number of controllers connected to at the same time (default 4)\n"
             + "  --username=<user> | -u <user>         : When not set, $local authentication is attempted\n"
             + "  --password=<password> | -p <password>\n"
             + "  --file=<name> | -f <name>             : The resulting CLI commands will be written to the file; if not set, they are output on the console\n"
+            + "  --format=<cli|json|dmr>               : Write CLI commands (the default), or the DMR operations with each batch as one\n"
+            + "                                          composite operation: one JSON document per line, or each in DMR binary form\n"
+            + "                                          preceded by its length as a 4 byte int\n"
             + "  --add-deployments=<true|false> | -ad  : By default cloning a server-group will skip the deployments\n"
             + "                                          If you first copy the content folder and clone the deployments, you can enable this\n"
+            + "  --export-content=<directory>          : With --add-deployments, also export the content of the deployments of the cloned\n"
+            + "                                          server-groups to this directory, one file per content hash, and add it to the\n"
+            + "                                          destination with \"deploy <file> --disabled\" ahead of the clones\n"
+            + "  --threads=<number> | -t <number>      : Standalone \"profile\": generate this many subsystems concurrently, once all are read\n"
+            + "                                          Several destination names: render this many copies concurrently\n"
+            + "                                          The output is identical to a run with the default of 1\n"
+            + "                                          With --apply, also the number of independent batches applied at the same time\n"
+            + "  --capture=<name> [--compress]         : Also save everything read from the controller to a (gzipped) snapshot file\n"
+            + "  --snapshot=<name>                     : Clone from a snapshot file instead of a controller, no connection is made\n"
+            + "                                          \"synthetic:<resources>\" generates a domain with a full-ha profile of that size,\n"
+            + "                                          \"synthetic-standalone:<resources>\" a standalone server, for load tests\n"
+            + "  --latency=<ms>[:<jitter ms>]          : With --snapshot, wait this long (plus a random jitter) for each operation,\n"
+            + "                                          as the round trip to a controller would take\n"
+            + "  --diff                                : If the destination already exists, only generate the add, remove,\n"
+            + "                                          write-attribute and undefine-attribute commands needed to make it equal\n"
+            + "                                          The destination is read from the source controller, so its name must differ\n"
+            + "  --single-batch                        : Standalone \"profile\": clone all subsystems in one batch instead of one each\n"
+            + "                                          Subsystems and resources are added in the order of their capability references,\n"
+            + "                                          this also applies to any other clone (e.g. a domain profile)\n"
+            + "  --apply[=<host>[:<port>]]             : Execute the operations instead of writing CLI commands, on the source controller\n"
+            + "                                          or the given one (same credentials); each batch is one composite operation\n"
+            + "  --chunk-size=<number>                 : With --apply, split batches into composites of at most this many operations\n"
+            + "  --batch-size=<number>                 : Split each clone into batches of about this many operations, at resource boundaries\n"
+            + "                                          Each batch is preceded by \"# batch <n> of <address>, after <batches>\"\n"
+            + "                                          listing the batches it depends on; the others can be applied in parallel\n"
+            + "                                          A batch depends on those adding the parents of its resources, and the resources\n"
+            + "                                          providing the capabilities they reference; siblings are ordered by these references\n"
+            + "  --lazy[=<number>]                     : Read the sources level by level instead of in one recursive read, with this many\n"
+            + "                                          reads at the same time (default 4); for very large models, as the memory\n"
+            + "                                          needed follows the widest level; not with --single-batch or --batch-size\n"
+            + "  --metrics=<name>                      : Write a JSON report with the time taken by each phase (connect, read,\n"
+            + "                                          traverse, write) and the counts of each cloned root to the file\n"
+            + "  --include=<pattern>,...               : Only clone the resources at or below these source addresses (and their parents)\n"
+            + "  --exclude=<pattern>,...               : Do not clone the resources at or below these source addresses\n"
+            + "                                          A pattern is an address where a name or value can be \"*\", \"prefix*\" or \"*suffix\",\n"
+            + "                                          e.g. /profile=*/subsystem=logging/logger=org.jboss*; what is left out is not read\n"
+            + "  --cache=<directory>                   : Keep what is read in this directory, per controller, and use it again while the\n"
+            + "                                          configuration of the controller (read-config-as-xml) is unchanged\n"
+            + "  --cache-ttl=<minutes>                 : The age after which a cached read is not used anymore (default 60)\n"
+            + "  --cache-size=<MB>                     : The cache is kept below this size, the oldest reads are evicted first (default 512)\n"
+            + "  --daemon=<port>                       : Serve clone requests on this port of localhost, keeping the connections open:\n"
+            + "                                          POST the arguments, one per line, to /clone; the output is streamed back\n"
+            + "                                          The other options are the defaults for each request, --connections the number\n"
+            + "                                          of requests handled at the same time. A request adds the elements, and only\n"
+            + "                                          --diff --single-batch --batch-size --format --lazy --include --exclude\n"
+            + "                                          --add-deployments --threads; it must send the header X-Profilecloner-Token with\n"
+            + "                                          $PROFILECLONER_DAEMON_TOKEN, or the token printed when none is set\n"
             + "\n"
             + "Examples for \"/from=value destinationvalue\":\n"
             + "  Domain mode:\n"
             + "    /socket-binding-group=full-ha-sockets full-ha-sockets-copy\n"
             + "    /profile=full-ha full-ha-copy\n"
             + "    /profile=full-ha/subsystem=web web\n"
+            + "    /profile=full-ha tenant1,tenant2,tenant3\n"
             + "\n"
             + "  Standalone server:\n"
             + "    /subsystem=security security\n"
             + "    profile\n"
-            + "   The latter being a shortcut to clone all subsystems in individual batches\n"
+            + "   The latter being a shortcut to clone all subsystems in individual batches (or one, see --single-batch)\n"
             + "\n"
             + "Each set will generate a batch/run-batch. It is recommended to clone the profile last\n"
+            + "A comma separated list of destination names clones the source once for each name, from a single read.\n"
             + "The names from/to can be equal if you want to execute the script on a different controller.\n"
             + "\n"
             + "\n Secure connections need:"
@@ -72,14 +145,51 @@ public class Main {
     }
 
     private String controller = null;
+    private List<String> controllers = null;
+    private int connections = 4;
     private int port = 0;
     private String user;
     private String pass;
 
     private boolean addDeployments = false;
 
+    private int threads = 1;
+
     private String filename;
 
+    private String captureFile;
+    private String snapshotFile;
+    private boolean compress = false;
+    private long latency = 0;
+    private long jitter = 0;
+    private String metricsFile;
+
+    private boolean diff = false;
+    private boolean singleBatch = false;
+
+    private boolean apply = false;
+    private String applyController = null;
+    private int applyPort = 0;
+    private int chunkSize = 0;
+    private int batchSize = 0;
+    private int lazy = 0;
+    // null for CLI commands
+    private OperationWriter.Format format = null;
+    private final List<String> includes = new ArrayList<>();
+    private final List<String> excludes = new ArrayList<>();
+    // null to clone everything
+    private AddressFilter filter = null;
+    private String cacheDirectory = null;
+    private long cacheTtl = 60;
+    private long cacheSize = 512;
+    private int daemonPort = 0;
+    private String contentDirectory = null;
+
+    // the daemon keeping the connections, when serving one of its requests
+    private Daemon daemon;
+    // for the commands when there is no file, and any messages
+    private PrintStream console = System.out;
+
     private final List<Element> elements = new LinkedList<>();
 
     public static void main(final String[] args) {
@@ -87,27 +197,29 @@ public class Main {
     }
 
     public Main(final String[] args) {       
-        if (!readOptions(args) || elements.isEmpty()) {
-            usage();
+        if (!parse(args, System.out)) {
             System.exit(0);
         }
 
-        try {
-            final CommandContext ctx = getContext();
-            final ModelControllerClient client = ctx.getModelControllerClient();
-
-            Cloner cloner;
-            final List<String> commands = new LinkedList<>();
-            for (Element element : elements) {
-                if ("profile".equals(element.source) && !ctx.isDomainMode()) {
-                    cloner = new StandaloneCloner(client);
-                } else {
-                    cloner = new GenericCloner(client, element.source, element.destination, addDeployments);
+        if (daemonPort > 0) {
+            try {
+                final String token = Daemon.token();
+                final Daemon daemon = new Daemon(daemonPort, connections, Daemon.defaults(args), token);
+                daemon.start();
+                System.out.println("Serving clone requests on http://" + daemon.getAddress().getHostString() + ":"
+                                   + daemon.getAddress().getPort() + "/clone");
+                if (System.getenv(Daemon.TOKEN_VARIABLE) == null) {
+                    System.out.println(Daemon.TOKEN_HEADER + ": " + token);
                 }
-                commands.addAll(cloner.copy());
+            } catch (final IOException e) {
+                e.printStackTrace();
+                System.exit(1);
             }
-            produceOutput(commands);
+            return;
+        }
 
+        try {
+            execute(System.out);
         } catch (final CommandLineException | IOException | RuntimeException e) {
             e.printStackTrace();
         } finally {
@@ -116,24 +228,358 @@ public class Main {
         }
     }
 
-    private void produceOutput(final List<String> commands) {
-        if (filename == null) {
-            for (String c : commands) {
-                System.out.println(c);
-            }
+    /**
+     * A request of the daemon, connecting through it.
+     */
+    Main(final Daemon daemon) {
+        this.daemon = daemon;
+    }
+
+    /**
+     * @param args     the command line, or the arguments of a daemon request
+     * @param messages for what is wrong with them, and the usage
+     * @return false if the arguments are not valid
+     */
+    boolean parse(final String[] args,
+                  final PrintStream messages) {
+        console = messages;
+        boolean valid;
+        try {
+            valid = readOptions(args);
+        } catch (final NumberFormatException e) {
+            messages.println("Not a number: " + e.getMessage() + "\n");
+            valid = false;
+        }
+        if (valid && daemonPort > 0 && (daemon != null || !elements.isEmpty())) {
+            messages.println("A daemon takes the elements to clone with each request.\n");
+            valid = false;
+        }
+        if (!valid || (daemonPort == 0 && elements.isEmpty())) {
+            usage(messages);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Clone what the arguments ask for.
+     *
+     * @param console for the commands when there is no file, and any messages
+     */
+    void execute(final PrintStream console)
+        throws CommandLineException,
+               IOException {
+        this.console = console;
+        if (controllers != null) {
+            runAll();
         } else {
-            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(filename), Charset.defaultCharset());) {
-                for (String c : commands) {
-                    writer.write(c);
-                    writer.newLine();
+            run(controller, port, filename, captureFile, metricsFile);
+        }
+    }
+
+    /**
+     * @return the media type of what {@link #execute(PrintStream)} writes to the console
+     */
+    String getContentType() {
+        if (filename != null || apply || controllers != null) {
+            return "text/plain; charset=" + Charset.defaultCharset().name();
+        } else if (format == OperationWriter.Format.JSON) {
+            return "application/x-ndjson";
+        } else if (format == OperationWriter.Format.DMR) {
+            return "application/octet-stream";
+        }
+        return "text/plain; charset=" + Charset.defaultCharset().name();
+    }
+
+    /**
+     * Clone from each of the controllers, a limited number at the same time, each with its own connection.
+     * Each controller gets its own output (and capture and metrics) file, named after it. A failure on one
+     * controller is reported, and the others carry on.
+     */
+    private void runAll() {
+        final AtomicInteger count = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(connections, runnable -> {
+            final Thread thread = new Thread(runnable, "profilecloner-controller-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        final Map<String, Future<?>> runs = new LinkedHashMap<>();
+        for (String hostPort : controllers) {
+            // checked by readOptions
+            final String[] parts = splitHostPort(hostPort);
+            final String host = parts[0];
+            final int hostPortNumber = parts[1] == null ? port : Integer.parseInt(parts[1]);
+            final String suffix = hostPort.replaceAll("[\\[\\]]", "").replace(':', '-');
+            runs.put(hostPort, executor.submit(() -> {
+                run(host, hostPortNumber,
+                    perController(filename == null ? "clone.cli" : filename, suffix),
+                    captureFile == null ? null : perController(captureFile, suffix),
+                    metricsFile == null ? null : perController(metricsFile, suffix));
+                return null;
+            }));
+        }
+        executor.shutdown();
+
+        int failed = 0;
+        for (Map.Entry<String, Future<?>> run : runs.entrySet()) {
+            try {
+                run.getValue().get();
+                console.println(run.getKey() + ": done");
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (final ExecutionException e) {
+                failed++;
+                console.println(run.getKey() + ": failed: " + e.getCause());
+            }
+        }
+        console.println("Cloned from " + (runs.size() - failed) + " of " + runs.size() + " controllers");
+    }
+
+    /**
+     * @return the name with the controller inserted before the extension: clone.cli becomes clone-host1.cli
+     */
+    private static String perController(final String name,
+                                        final String controller) {
+        final int dot = name.lastIndexOf('.');
+        if (dot <= name.lastIndexOf('/') + 1) {
+            return name + "-" + controller;
+        }
+        return name.substring(0, dot) + "-" + controller + name.substring(dot);
+    }
+
+    /**
+     * Clone all elements from one controller (or the snapshot).
+     *
+     * @param controller  the host, or null for the default
+     * @param port        or 0 for the default
+     * @param filename    for the commands, null for the console
+     * @param captureFile to save a snapshot to, or null
+     * @param metricsFile to write the metrics to, or null
+     */
+    private void run(final String controller,
+                     final int port,
+                     final String filename,
+                     final String captureFile,
+                     final String metricsFile)
+        throws CommandLineException,
+               IOException {
+        final List<CommandContext> contexts = new ArrayList<>();
+        boolean failed = false;
+        try {
+            final CloneMetrics metrics = new CloneMetrics();
+            long started = System.nanoTime();
+            final Snapshot capture = captureFile == null ? null : new Snapshot();
+            final ModelControllerClient source;
+            final ModelControllerClient controllerClient = snapshotFile == null ? connect(controller, port, contexts) : null;
+            if (snapshotFile != null) {
+                // no controller needed, everything is answered from the snapshot
+                final OfflineClient offline = new OfflineClient(getSnapshot(snapshotFile));
+                offline.setLatency(Duration.ofMillis(latency), Duration.ofMillis(jitter));
+                source = offline;
+            } else if (capture != null) {
+                source = new RecordingClient(controllerClient, capture);
+            } else {
+                source = controllerClient;
+            }
+            // JFR events for the round trips, only recorded while a recording is running
+            final ModelControllerClient client = new TracingClient(source);
+            started = metrics.phase(CloneMetrics.CONNECT, started);
+
+            final ControllerInfo info = ControllerInfo.of(client);
+            // the CLI knows best what it is connected to, only a snapshot has to tell itself
+            final boolean domain = snapshotFile == null ? contexts.get(0).isDomainMode() : info.isDomain();
+
+            final List<Cloner> cloners = new LinkedList<>();
+            for (Element element : elements) {
+                if ("profile".equals(element.source) && !domain) {
+                    final StandaloneCloner cloner = new StandaloneCloner(client, threads);
+                    cloner.setSingleBatch(singleBatch);
+                    cloner.setBatchSize(batchSize);
+                    cloner.setLazy(lazy);
+                    if (filter != null) {
+                        cloner.setFilter(filter);
+                    }
+                    if (metricsFile != null) {
+                        cloner.setMetrics(metrics);
+                    }
+                    cloners.add(cloner);
+                } else if (element.destination.indexOf(',') >= 0) {
+                    // one read, several copies
+                    final MultiDestinationCloner cloner = new MultiDestinationCloner(client, element.source,
+                                                                                     Arrays.asList(element.destination.split(",")),
+                                                                                     addDeployments, threads);
+                    cloner.setDiff(diff);
+                    cloner.setOrdered(singleBatch);
+                    cloner.setBatchSize(batchSize);
+                    if (filter != null) {
+                        cloner.setFilter(filter);
+                    }
+                    if (metricsFile != null) {
+                        cloner.setMetrics(metrics);
+                    }
+                    cloners.add(cloner);
+                } else {
+                    final GenericCloner cloner = new GenericCloner(client, element.source, element.destination, addDeployments);
+                    cloner.setDiff(diff);
+                    cloner.setOrdered(singleBatch);
+                    cloner.setBatchSize(batchSize);
+                    cloner.setLazy(lazy);
+                    if (filter != null) {
+                        cloner.setFilter(filter);
+                    }
+                    if (metricsFile != null) {
+                        cloner.setMetrics(metrics);
+                    }
+                    cloners.add(cloner);
+                }
+            }
+
+            // all sources are read in one go
+            final ModelFetcher fetcher = new ModelFetcher(client);
+            if (cacheDirectory != null) {
+                final String key = (snapshotFile != null ? "snapshot " + snapshotFile : (controller == null ? "default" : controller) + ":" + port)
+                    + ", " + info;
+                fetcher.setCache(new ModelCache(Paths.get(cacheDirectory), key, Duration.ofMinutes(cacheTtl), cacheSize * 1024 * 1024));
+            }
+            for (Cloner cloner : cloners) {
+                cloner.fetch(fetcher);
+            }
+            fetcher.execute();
+            started = metrics.phase(CloneMetrics.READ, started);
+
+            // the content goes first, the cloned server-group deployments refer to it
+            final List<String> deploys = new ArrayList<>();
+            if (contentDirectory != null) {
+                final ContentExporter exporter = new ContentExporter(client, Paths.get(contentDirectory));
+                for (Element element : elements) {
+                    final AddressStack address = new AddressStack(element.source);
+                    if (address.size() == 1 && "server-group".equals(address.getName(0))) {
+                        exporter.addServerGroup(address, filter);
+                    }
+                }
+                deploys.addAll(exporter.export());
+                started = metrics.phase(CloneMetrics.CONTENT, started);
+            }
+
+            // the time spent in the writer or applier, the rest of the clone is the traversal
+            final long[] written = {0};
+            if (apply) {
+                final ModelControllerClient destination = applyController != null || controllerClient == null
+                    ? connect(applyController, applyPort, contexts)
+                    : controllerClient;
+                started = metrics.phase(CloneMetrics.CONNECT, started);
+                final CompositeApplier applier = new CompositeApplier(new TracingClient(destination), chunkSize, threads, console);
+                final OperationSink sink = metricsFile == null ? applier : timed(applier, written);
+                for (Cloner cloner : cloners) {
+                    cloner.apply(sink);
+                }
+                final long finishing = System.nanoTime();
+                applier.finish();
+                written[0] += System.nanoTime() - finishing;
+            } else if (format != null) {
+                try (OperationWriter writer = OperationWriter.open(filename, format, console)) {
+                    final OperationSink sink = metricsFile == null ? writer : timed(writer, written);
+                    for (Cloner cloner : cloners) {
+                        cloner.apply(sink);
+                    }
+                }
+            } else {
+                // commands are written while they are generated, not collected first
+                try (CommandWriter writer = CommandWriter.open(filename, console)) {
+                    final CommandSink sink = metricsFile == null ? writer : command -> {
+                        final long writing = System.nanoTime();
+                        writer.add(command);
+                        written[0] += System.nanoTime() - writing;
+                    };
+                    for (String command : deploys) {
+                        sink.add(command);
+                    }
+                    for (Cloner cloner : cloners) {
+                        cloner.copy(sink);
+                    }
+                }
+            }
+            metrics.add(CloneMetrics.WRITE, written[0]);
+            started = metrics.phase(CloneMetrics.TRAVERSE, started + written[0]);
+
+            if (capture != null) {
+                capture.write(Paths.get(captureFile), compress);
+                metrics.phase(CloneMetrics.CAPTURE, started);
+            }
+
+            if (metricsFile != null) {
+                metrics.write(Paths.get(metricsFile));
+            }
+        } catch (final IOException e) {
+            // the connection may be gone, the next requests of a daemon connect again
+            failed = true;
+            throw e;
+        } finally {
+            for (CommandContext context : contexts) {
+                if (daemon == null) {
+                    context.terminateSession();
+                } else {
+                    daemon.release(context, failed);
                 }
-            } catch (final Exception e) {
-                System.out.println(e.toString());
             }
         }
     }
 
-    private CommandContext getContext() 
+    /**
+     * @param contexts to add the new context to, for closing it when done
+     */
+    private ModelControllerClient connect(final String controller,
+                                          final int port,
+                                          final List<CommandContext> contexts)
+        throws CommandLineException {
+        final CommandContext context = daemon == null
+            ? getContext(controller, port)
+            // kept open for the next requests, per controller and credentials
+            : daemon.connect(Daemon.key(user, pass, controller, port), () -> getContext(controller, port));
+        contexts.add(context);
+        return context.getModelControllerClient();
+    }
+
+    /**
+     * @param written accumulates the time spent in the sink
+     */
+    private static OperationSink timed(final OperationSink sink,
+                                       final long[] written) {
+        return new OperationSink() {
+            @Override
+            public void add(final ModelNode operation)
+                throws IOException {
+                final long start = System.nanoTime();
+                sink.add(operation);
+                written[0] += System.nanoTime() - start;
+            }
+
+            @Override
+            public void runBatch()
+                throws IOException {
+                final long start = System.nanoTime();
+                sink.runBatch();
+                written[0] += System.nanoTime() - start;
+            }
+
+            @Override
+            public void runBatch(final int number,
+                                 final List<Integer> dependsOn)
+                throws IOException {
+                final long start = System.nanoTime();
+                sink.runBatch(number, dependsOn);
+                written[0] += System.nanoTime() - start;
+            }
+        };
+    }
+
+    /**
+     * @param controller the host, or null for the default
+     * @param port       or 0 for the default
+     */
+    private CommandContext getContext(String controller,
+                                      int port)
         throws CommandLineException {
         
         final CommandContextFactory ctxFactory = CommandContextFactory.getInstance();
@@ -156,11 +602,58 @@ public class Main {
         return ctx;
     }
 
+    /**
+     * @param name a snapshot file, or "synthetic:<resources>" / "synthetic-standalone:<resources>"
+     */
+    private static Snapshot getSnapshot(final String name)
+        throws IOException {
+        if (name.startsWith("synthetic:")) {
+            return new Snapshot(SyntheticModel.domain("full-ha", Integer.parseInt(name.substring("synthetic:".length()))));
+        }
+        if (name.startsWith("synthetic-standalone:")) {
+            return new Snapshot(SyntheticModel.standalone(Integer.parseInt(name.substring("synthetic-standalone:".length()))));
+        }
+        return Snapshot.read(Paths.get(name));
+    }
+
+    /**
+     * @return true if the element clones onto itself, which a diff would always find equal
+     */
+    private static boolean isOwnDestination(final Element element) {
+        if (element.destination == null || "profile".equals(element.source)) {
+            return true;
+        }
+        final String last = element.source.substring(element.source.lastIndexOf('/') + 1);
+        final String sourceName = last.substring(last.indexOf('=') + 1);
+        return Arrays.asList(element.destination.split(",")).contains(sourceName);
+    }
+
+    /**
+     * @param hostPort "host", "host:port", "[ipv6]" or "[ipv6]:port"
+     * @return the host and the port, null if none was given; null (after telling why) if not valid
+     */
+    private String[] splitHostPort(final String hostPort) {
+        final int colon = hostPort.startsWith("[") ? hostPort.indexOf(':', hostPort.indexOf(']')) : hostPort.indexOf(':');
+        final String host = colon < 0 ? hostPort : hostPort.substring(0, colon);
+        final String portNumber = colon < 0 ? null : hostPort.substring(colon + 1);
+        boolean valid = !host.isEmpty() && (host.startsWith("[") ? host.endsWith("]") : host.indexOf(']') < 0)
+            && (portNumber == null || portNumber.matches("[0-9]{1,5}") && Integer.parseInt(portNumber) <= 65535);
+        if (!valid || (portNumber != null && portNumber.indexOf(':') >= 0)) {
+            console.println("Not a host[:port]: " + hostPort + ", an IPv6 address goes in brackets: [::1]:9990\n");
+            return null;
+        }
+        return new String[] {host, portNumber};
+    }
+
     private boolean readOptions(final String[] args) {       
         int i = 0;
         while (i < args.length && args[i] != null && args[i].startsWith("-")) {
             if (args[i].startsWith("--controller=")) {
                 controller = args[i++].substring("--controller=".length());
+            } else if (args[i].startsWith("--controllers=")) {
+                controllers = Arrays.asList(args[i++].substring("--controllers=".length()).split(","));
+            } else if (args[i].startsWith("--connections=")) {
+                connections = Integer.parseInt(args[i++].substring("--connections=".length()));
             } else if ("-c".equals(args[i])) {
                 controller = args[++i];
                 i++;
@@ -184,6 +677,77 @@ public class Main {
             } else if ("-ad".equals(args[i])) {
                 addDeployments = true;
                 i++;
+            } else if (args[i].startsWith("--threads=")) {
+                threads = Integer.parseInt(args[i++].substring("--threads=".length()));
+            } else if ("-t".equals(args[i])) {
+                threads = Integer.parseInt(args[++i]);
+                i++;
+            } else if (args[i].startsWith("--capture=")) {
+                captureFile = args[i++].substring("--capture=".length());
+            } else if ("--compress".equals(args[i])) {
+                compress = true;
+                i++;
+            } else if (args[i].startsWith("--snapshot=")) {
+                snapshotFile = args[i++].substring("--snapshot=".length());
+            } else if (args[i].startsWith("--latency=")) {
+                final String[] latencyJitter = args[i++].substring("--latency=".length()).split(":");
+                latency = Long.parseLong(latencyJitter[0]);
+                if (latencyJitter.length > 1) {
+                    jitter = Long.parseLong(latencyJitter[1]);
+                }
+            } else if (args[i].startsWith("--metrics=")) {
+                metricsFile = args[i++].substring("--metrics=".length());
+            } else if ("--diff".equals(args[i])) {
+                diff = true;
+                i++;
+            } else if ("--single-batch".equals(args[i])) {
+                singleBatch = true;
+                i++;
+            } else if ("--apply".equals(args[i])) {
+                apply = true;
+                i++;
+            } else if (args[i].startsWith("--apply=")) {
+                apply = true;
+                final String[] hostPort = splitHostPort(args[i++].substring("--apply=".length()));
+                if (hostPort == null) {
+                    return false;
+                }
+                applyController = hostPort[0];
+                if (hostPort[1] != null) {
+                    applyPort = Integer.parseInt(hostPort[1]);
+                }
+            } else if (args[i].startsWith("--chunk-size=")) {
+                chunkSize = Integer.parseInt(args[i++].substring("--chunk-size=".length()));
+            } else if (args[i].startsWith("--format=")) {
+                final String name = args[i++].substring("--format=".length());
+                if ("json".equals(name)) {
+                    format = OperationWriter.Format.JSON;
+                } else if ("dmr".equals(name)) {
+                    format = OperationWriter.Format.DMR;
+                } else if (!"cli".equals(name)) {
+                    return false;
+                }
+            } else if (args[i].startsWith("--include=")) {
+                includes.addAll(Arrays.asList(args[i++].substring("--include=".length()).split(",")));
+            } else if (args[i].startsWith("--exclude=")) {
+                excludes.addAll(Arrays.asList(args[i++].substring("--exclude=".length()).split(",")));
+            } else if (args[i].startsWith("--daemon=")) {
+                daemonPort = Integer.parseInt(args[i++].substring("--daemon=".length()));
+            } else if (args[i].startsWith("--export-content=")) {
+                contentDirectory = args[i++].substring("--export-content=".length());
+            } else if (args[i].startsWith("--cache=")) {
+                cacheDirectory = args[i++].substring("--cache=".length());
+            } else if (args[i].startsWith("--cache-ttl=")) {
+                cacheTtl = Long.parseLong(args[i++].substring("--cache-ttl=".length()));
+            } else if (args[i].startsWith("--cache-size=")) {
+                cacheSize = Long.parseLong(args[i++].substring("--cache-size=".length()));
+            } else if ("--lazy".equals(args[i])) {
+                lazy = 4;
+                i++;
+            } else if (args[i].startsWith("--lazy=")) {
+                lazy = Integer.parseInt(args[i++].substring("--lazy=".length()));
+            } else if (args[i].startsWith("--batch-size=")) {
+                batchSize = Integer.parseInt(args[i++].substring("--batch-size=".length()));
             } else if (args[i].startsWith("--port=")) {
                 port = Integer.parseInt(args[i++].substring("--port=".length()));
             } else {
@@ -216,8 +780,71 @@ public class Main {
         } catch (final IndexOutOfBoundsException e) {
             return false;
         }
+        if (controllers != null) {
+            for (String hostPort : controllers) {
+                if (splitHostPort(hostPort) == null) {
+                    return false;
+                }
+            }
+        }
+        if (connections < 1 || threads < 1 || chunkSize < 0 || batchSize < 0 || lazy < 0
+            || cacheTtl < 0 || cacheSize < 1 || port < 0 || daemonPort < 0) {
+            console.println("--connections, --threads and --cache-size must be at least 1; --chunk-size, --batch-size,\n"
+                            + "--lazy, --cache-ttl and the ports can not be negative.\n");
+            return false;
+        }
+        if (captureFile != null && snapshotFile != null) {
+            console.println("A snapshot can not be captured while cloning from a snapshot.\n");
+            return false;
+        }
+        if (controllers != null && (controller != null || snapshotFile != null || applyController != null)) {
+            console.println("With --controllers, each controller is cloned from (and applied to) itself.\n");
+            return false;
+        }
+        if ((latency > 0 || jitter > 0) && snapshotFile == null) {
+            console.println("A latency can only be added when cloning from a snapshot.\n");
+            return false;
+        }
+        if (!includes.isEmpty() || !excludes.isEmpty()) {
+            try {
+                filter = new AddressFilter(includes, excludes);
+            } catch (final IllegalArgumentException e) {
+                console.println(e.getMessage() + "\n");
+                return false;
+            }
+        }
+        if (cacheDirectory != null && captureFile != null) {
+            console.println("A snapshot needs everything read from the controller, it can not be captured with --cache.\n");
+            return false;
+        }
+        if (contentDirectory != null && (!addDeployments || apply || format != null)) {
+            console.println("The content is exported for the deployments of the cloned server-groups, with --add-deployments,\n"
+                               + "and added with a CLI command: not with --apply or --format.\n");
+            return false;
+        }
+        if (apply && format != null) {
+            console.println("The operations are either applied or written, use either --apply or --format.\n");
+            return false;
+        }
+        if (lazy > 0 && (singleBatch || batchSize > 0)) {
+            console.println("A lazy read can not be combined with --single-batch or --batch-size, they need the whole model.\n");
+            return false;
+        }
+        if (lazy > 0 && elements.stream().anyMatch(element -> element.destination != null && element.destination.indexOf(',') >= 0)) {
+            console.println("A lazy read can not be combined with several destination names, they share one read.\n");
+            return false;
+        }
+        if (diff && elements.stream().anyMatch(Main::isOwnDestination)) {
+            console.println("A diff compares the source with another resource on the same controller,"
+                            + " it needs a destination name other than the source's (and not the standalone \"profile\").\n");
+            return false;
+        }
+        if (singleBatch && batchSize > 0) {
+            console.println("A single batch can not be split, use either --single-batch or --batch-size.\n");
+            return false;
+        }
         if ((user != null && pass == null) | (user == null && pass != null)) {
-            System.out.println("Either specify user and password, or neither for local authentication.\n");
+            console.println("Either specify user and password, or neither for local authentication.\n");
             return false;
         }
 
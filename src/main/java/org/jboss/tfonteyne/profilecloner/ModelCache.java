@@ -0,0 +1,249 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * A local cache of the recursive reads of earlier runs, one file per controller and read.
+ * <p>
+ * Along with the reads, the configuration of the controller is read as XML, which is one operation
+ * and no tree of nodes, and kept as a digest. An entry is only used again when that digest is still
+ * the same, so any change anywhere on the controller makes all entries stale, and the entry is younger
+ * than the maximum age. Entries are evicted when too old, and the oldest first once the cache grows
+ * beyond its maximum size.
+ * <p>
+ * The controller is part of the key, which should include its management version: the same address
+ * on another version is another read.
+ */
+public class ModelCache {
+
+    private static final String SUFFIX = ".dmr";
+    private static final String KEY = "key";
+    private static final String READ_AT = "read-at";
+    private static final String CHECK = "check";
+    private static final String RESULT = "result";
+
+    private final Path directory;
+    private final String controller;
+    private final long maxAge;
+    private final long maxBytes;
+
+    /**
+     * @param directory  for the cache files, shared by all controllers
+     * @param controller identifies the controller, and its management version
+     * @param maxAge     after which an entry is not used anymore
+     * @param maxBytes   the size the cache is kept below
+     * @throws IOException if the directory can not be created
+     */
+    public ModelCache(final Path directory,
+                      final String controller,
+                      final Duration maxAge,
+                      final long maxBytes)
+        throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.controller = controller;
+        this.maxAge = maxAge.toMillis();
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param operation a registered read
+     * @return true for the reads which are cached: the recursive read-resource of the cloners
+     */
+    static boolean isCached(final ModelNode operation) {
+        return ClientConstants.READ_RESOURCE_OPERATION.equals(operation.get(ClientConstants.OP).asString())
+            && operation.get(ClientConstants.RECURSIVE).asBoolean(false);
+    }
+
+    /**
+     * @return the read telling whether the cached results still hold, see {@link #digest(ModelNode)}
+     */
+    static ModelNode check() {
+        final ModelNode check = new ModelNode();
+        check.get(ClientConstants.OP).set(Snapshot.READ_CONFIG_AS_XML);
+        check.get(ClientConstants.OP_ADDR).setEmptyList();
+        return check;
+    }
+
+    /**
+     * @param check the result of the {@link #check()}
+     * @return what is kept of it with the entries, and compared
+     */
+    static ModelNode digest(final ModelNode check) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(check.asString().getBytes(StandardCharsets.UTF_8));
+            return new ModelNode(digest);
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param operation a cached read
+     * @return the entry, or null if there is none, or it is too old
+     * @throws IOException
+     */
+    public Entry get(final ModelNode operation)
+        throws IOException {
+        final String key = key(operation);
+        final Path file = file(key);
+        final ModelNode node = new ModelNode();
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(file), 65536)) {
+            node.readExternal(in);
+        } catch (final NoSuchFileException e) {
+            return null;
+        }
+        if (!key.equals(node.get(KEY).asString())) {
+            return null;
+        }
+        if (System.currentTimeMillis() - node.get(READ_AT).asLong() > maxAge) {
+            Files.deleteIfExists(file);
+            return null;
+        }
+        return new Entry(node.get(CHECK), node.get(RESULT));
+    }
+
+    /**
+     * Save the result of a read, and evict what is too old or too much.
+     *
+     * @param operation a cached read
+     * @param check     the {@link #digest(ModelNode)} of the check read along with it
+     * @param result    the result of the read
+     * @throws IOException
+     */
+    public void put(final ModelNode operation,
+                    final ModelNode check,
+                    final ModelNode result)
+        throws IOException {
+        final String key = key(operation);
+        final ModelNode node = new ModelNode();
+        node.get(KEY).set(key);
+        node.get(READ_AT).set(System.currentTimeMillis());
+        node.get(CHECK).set(check);
+        node.get(RESULT).set(result);
+
+        // written aside and moved in place, a concurrent run never reads half an entry
+        final Path file = file(key);
+        final Path written = Files.createTempFile(directory, "entry", ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(written), 65536)) {
+            node.writeExternal(out);
+        } catch (final IOException e) {
+            Files.deleteIfExists(written);
+            throw e;
+        }
+        Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        evict();
+    }
+
+    private void evict()
+        throws IOException {
+        final List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            entries.forEach(files::add);
+        }
+        final long now = System.currentTimeMillis();
+        final Map<Path, Long> modified = new HashMap<>();
+        final Map<Path, Long> sizes = new HashMap<>();
+        for (Path file : files) {
+            try {
+                final long time = Files.getLastModifiedTime(file).toMillis();
+                if (now - time > maxAge) {
+                    Files.deleteIfExists(file);
+                } else {
+                    modified.put(file, time);
+                    sizes.put(file, Files.size(file));
+                }
+            } catch (final NoSuchFileException e) {
+                // evicted by another run
+            }
+        }
+        // the newest are kept, up to the maximum size
+        final List<Path> kept = new ArrayList<>(modified.keySet());
+        kept.sort(Comparator.comparing(modified::get, Comparator.reverseOrder()));
+        long bytes = 0;
+        for (Path file : kept) {
+            bytes += sizes.get(file);
+            if (bytes > maxBytes) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private String key(final ModelNode operation) {
+        return controller + "\n" + operation.toString();
+    }
+
+    private Path file(final String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder name = new StringBuilder(digest.length * 2 + SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return directory.resolve(name.append(SUFFIX).toString());
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A cached read: the digest of the check when it was read, and the result of the read itself.
+     */
+    public static final class Entry {
+        private final ModelNode check;
+        private final ModelNode result;
+
+        private Entry(final ModelNode check,
+                      final ModelNode result) {
+            this.check = check;
+            this.result = result;
+        }
+
+        /**
+         * @param check the digest of the check now
+         * @return true if the cached result still holds
+         */
+        public boolean isFresh(final ModelNode check) {
+            return this.check.equals(check);
+        }
+
+        public ModelNode getResult() {
+            return result;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Collects the read operations the cloners of one run need, and executes them all
+ * as the steps of one single "composite" operation: one round trip instead of one per read.
+ * <p>
+ * Identical reads are only executed once. A read registered after {@link #execute()}
+ * is executed on its own when its result is asked for.
+ * <p>
+ * With a {@link ModelCache}, the configuration of the controller is read as XML along with the reads;
+ * while its digest matches the one of a cached recursive read-resource, the cached result is used and
+ * the read is not done. Only the stale entries take a second round trip.
+ */
+public class ModelFetcher {
+
+    private static final String FAILED = "failed";
+    private static final String COMPOSITE = "composite";
+    private static final String STEPS = "steps";
+    private static final String READ_RESOURCE_DESCRIPTION = "read-resource-description";
+
+    private final ModelControllerClient client;
+
+    // keyed on the operation itself, so the same read is never done twice
+    private final Map<String, Fetch> fetches = new LinkedHashMap<>();
+    private final List<Fetch> pending = new ArrayList<>();
+    private ModelCache cache;
+
+    public ModelFetcher(final ModelControllerClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @param cache to take the recursive reads from when still fresh, and to save them to
+     */
+    public void setCache(final ModelCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Register a recursive read-resource (without defaults), as used by the cloners.
+     *
+     * @param address
+     * @return the handle to get the result from once executed
+     */
+    public Fetch readResource(final AddressStack address) {
+        return readResource(address, true);
+    }
+
+    /**
+     * Register a read-resource (without defaults).
+     *
+     * @param address
+     * @param recursive false to read the resource only, with placeholders for its children
+     * @return the handle to get the result from once executed
+     */
+    public Fetch readResource(final AddressStack address,
+                              final boolean recursive) {
+        final ModelNode node = new ModelNode();
+        node.get(ClientConstants.OP).set(ClientConstants.READ_RESOURCE_OPERATION);
+        address.setAddress(node);
+        node.get(ClientConstants.RECURSIVE).set(recursive);
+        node.get("include-defaults").set(false);
+        return add(node);
+    }
+
+    /**
+     * Register the read of a source as the cloners make it: recursive, unless it is read lazily or the
+     * filter leaves out part of it, see {@link PrunedReader#complete}.
+     *
+     * @param address of the source
+     * @param filter  the include/exclude patterns, or null
+     * @param lazy    the number of levels read at a time, 0 for a recursive read
+     * @return the handle to get the result from once executed
+     */
+    public Fetch readSource(final AddressStack address,
+                            final AddressFilter filter,
+                            final int lazy) {
+        return readResource(address, lazy == 0
+                                     && (filter == null || filter.decide(address) == AddressFilter.Decision.ALL));
+    }
+
+    /**
+     * Register a recursive read-resource-description, as used for the {@link DependencyOrder}.
+     *
+     * @param address
+     * @return the handle to get the result from once executed
+     */
+    public Fetch readDescription(final AddressStack address) {
+        final ModelNode node = new ModelNode();
+        node.get(ClientConstants.OP).set(READ_RESOURCE_DESCRIPTION);
+        address.setAddress(node);
+        node.get(ClientConstants.RECURSIVE).set(true);
+        return add(node);
+    }
+
+    /**
+     * Register any read operation.
+     *
+     * @param operation
+     * @return the handle to get the result from once executed
+     */
+    public synchronized Fetch add(final ModelNode operation) {
+        final String key = operation.toString();
+        Fetch fetch = fetches.get(key);
+        if (fetch == null) {
+            fetch = new Fetch(operation);
+            fetches.put(key, fetch);
+            pending.add(fetch);
+        }
+        return fetch;
+    }
+
+    /**
+     * Execute all reads registered so far in one round trip (two with a cache holding stale entries).
+     *
+     * @throws IOException
+     */
+    public void execute()
+        throws IOException {
+        final List<Fetch> steps;
+        synchronized (this) {
+            steps = new ArrayList<>(pending);
+            pending.clear();
+        }
+        if (cache == null) {
+            run(steps);
+        } else {
+            runCached(steps);
+        }
+    }
+
+    /**
+     * Execute the reads, or take them from the cache when the check read along with them tells they are fresh.
+     */
+    private void runCached(final List<Fetch> steps)
+        throws IOException {
+        final List<Fetch> round = new ArrayList<>();
+        final List<Fetch> read = new ArrayList<>();
+        final Map<Fetch, ModelCache.Entry> cached = new LinkedHashMap<>();
+        for (Fetch fetch : steps) {
+            if (!ModelCache.isCached(fetch.operation)) {
+                round.add(fetch);
+                continue;
+            }
+            final ModelCache.Entry entry = cache.get(fetch.operation);
+            if (entry == null) {
+                round.add(fetch);
+                read.add(fetch);
+            } else {
+                cached.put(fetch, entry);
+            }
+        }
+        if (read.isEmpty() && cached.isEmpty()) {
+            run(round);
+            return;
+        }
+        // one check for all cached reads of the round
+        final Fetch check = new Fetch(ModelCache.check());
+        round.add(check);
+        run(round);
+        final ModelNode digest = ModelCache.digest(check.result);
+
+        final List<Fetch> stale = new ArrayList<>();
+        for (Map.Entry<Fetch, ModelCache.Entry> entry : cached.entrySet()) {
+            final Fetch fetch = entry.getKey();
+            if (entry.getValue().isFresh(digest)) {
+                fetch.result = entry.getValue().getResult();
+            } else {
+                stale.add(fetch);
+            }
+        }
+        run(stale);
+        read.addAll(stale);
+
+        for (Fetch fetch : read) {
+            cache.put(fetch.operation, digest, fetch.result);
+        }
+    }
+
+    /**
+     * Execute the reads in one round trip.
+     */
+    private void run(final List<Fetch> steps)
+        throws IOException {
+        if (steps.isEmpty()) {
+            return;
+        }
+        if (steps.size() == 1) {
+            steps.get(0).execute();
+            return;
+        }
+
+        final ModelNode composite = new ModelNode();
+        composite.get(ClientConstants.OP).set(COMPOSITE);
+        composite.get(ClientConstants.OP_ADDR).setEmptyList();
+        for (Fetch fetch : steps) {
+            composite.get(STEPS).add(fetch.operation);
+        }
+
+        final ModelNode result = client.execute(composite);
+        if (FAILED.equals(result.get(ClientConstants.OUTCOME).asString())) {
+            throw new java.lang.RuntimeException(result.asString());
+        }
+        final ModelNode results = result.get(ClientConstants.RESULT);
+        for (int i = 0; i < steps.size(); i++) {
+            steps.get(i).set(results.get("step-" + (i + 1)));
+        }
+    }
+
+    /**
+     * The result of one registered read.
+     */
+    public final class Fetch {
+        private final ModelNode operation;
+        private ModelNode result;
+
+        private Fetch(final ModelNode operation) {
+            this.operation = operation;
+        }
+
+        /**
+         * @return the "result" part of the response, executing the read now if it was not done yet
+         * @throws IOException
+         */
+        public synchronized ModelNode get()
+            throws IOException {
+            if (result == null) {
+                synchronized (ModelFetcher.this) {
+                    pending.remove(this);
+                }
+                if (cache == null) {
+                    execute();
+                } else {
+                    runCached(List.of(this));
+                }
+            }
+            return result;
+        }
+
+        private synchronized void execute()
+            throws IOException {
+            set(client.execute(operation));
+        }
+
+        private synchronized void set(final ModelNode response) {
+            if (FAILED.equals(response.get(ClientConstants.OUTCOME).asString())) {
+                throw new java.lang.RuntimeException(response.asString());
+            }
+            result = response.get(ClientConstants.RESULT);
+        }
+    }
+}
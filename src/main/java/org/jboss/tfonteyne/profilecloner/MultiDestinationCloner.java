@@ -0,0 +1,140 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.as.cli.CommandLineException;
+import org.jboss.as.controller.client.ModelControllerClient;
+
+/**
+ * Clones one source to several destination names, e.g. a profile per tenant.
+ * <p>
+ * The source is read once: the cloners register the same read, which the {@link ModelFetcher}
+ * only executes once, and all of them traverse the same tree. Nothing writes to that tree while
+ * cloning, so the copies are rendered concurrently, each with its own destination {@link AddressStack}.
+ * The output is in the order of the names, as when cloning them one after the other.
+ */
+public class MultiDestinationCloner implements Cloner {
+
+    private final ModelControllerClient client;
+    private final List<GenericCloner> cloners = new ArrayList<>();
+    private final int threads;
+
+    private boolean fetched = false;
+
+    /**
+     * @param client
+     * @param source           a CLI style address, example: "/profile=default"
+     * @param destinationNames the new names of the last part of the source address
+     * @param addDeployments
+     * @param threads          the number of copies to render concurrently
+     * @throws IOException
+     * @throws CommandLineException
+     */
+    public MultiDestinationCloner(final ModelControllerClient client,
+                                  final String source,
+                                  final List<String> destinationNames,
+                                  final boolean addDeployments,
+                                  final int threads)
+        throws IOException,
+               CommandLineException {
+        this.client = client;
+        this.threads = threads;
+        for (String destinationName : destinationNames) {
+            cloners.add(new GenericCloner(client, source, destinationName, addDeployments));
+        }
+    }
+
+    /**
+     * @param diff see {@link GenericCloner#setDiff(boolean)}
+     */
+    public void setDiff(final boolean diff) {
+        cloners.forEach(cloner -> cloner.setDiff(diff));
+    }
+
+    /**
+     * @param ordered see {@link GenericCloner#setOrdered(boolean)}, the order is only built once
+     */
+    public void setOrdered(final boolean ordered) {
+        cloners.forEach(cloner -> cloner.setOrdered(ordered));
+    }
+
+    /**
+     * @param batchSize see {@link GenericCloner#setBatchSize(int)}
+     */
+    public void setBatchSize(final int batchSize) {
+        cloners.forEach(cloner -> cloner.setBatchSize(batchSize));
+    }
+
+    /**
+     * @param filter see {@link GenericCloner#setFilter(AddressFilter)}, the source is read once
+     */
+    public void setFilter(final AddressFilter filter) {
+        cloners.forEach(cloner -> cloner.setFilter(filter));
+    }
+
+    /**
+     * @param metrics each destination is reported as a root of its own
+     */
+    public void setMetrics(final CloneMetrics metrics) {
+        cloners.forEach(cloner -> cloner.setMetrics(metrics));
+    }
+
+    @Override
+    public void fetch(final ModelFetcher fetcher) {
+        for (GenericCloner cloner : cloners) {
+            cloner.fetch(fetcher);
+        }
+        fetched = true;
+    }
+
+    @Override
+    public void copy(final CommandSink sink)
+        throws IOException,
+               CommandLineException {
+        getCloner().copy(sink);
+    }
+
+    @Override
+    public void apply(final OperationSink sink)
+        throws IOException,
+               CommandLineException {
+        getCloner().apply(sink);
+    }
+
+    private ParallelCloner getCloner()
+        throws IOException {
+        if (!fetched) {
+            final ModelFetcher own = new ModelFetcher(client);
+            fetch(own);
+            own.execute();
+        }
+
+        // built on the calling thread, and only read by the cloners
+        final DependencyOrder order = cloners.get(0).getOrder();
+        final List<ParallelCloner.Factory> factories = new ArrayList<>(cloners.size());
+        for (GenericCloner cloner : cloners) {
+            if (order != null) {
+                cloner.setOrder(order);
+            }
+            factories.add(() -> cloner);
+        }
+        return new ParallelCloner(factories, threads);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.as.controller.client.Operation;
+import org.jboss.as.controller.client.OperationMessageHandler;
+import org.jboss.as.controller.client.OperationResponse;
+import org.jboss.dmr.ModelNode;
+import org.jboss.threads.AsyncFuture;
+import org.jboss.threads.AsyncFutureTask;
+
+/**
+ * A client answering the reads of the cloners from a {@link Snapshot}, without a controller.
+ * <p>
+ * A latency (plus a random jitter) can be added to each operation, to see the effect of the
+ * round trips to a real controller in load tests and benchmarks.
+ */
+public class OfflineClient implements ModelControllerClient {
+
+    private final Snapshot snapshot;
+
+    private long latency = 0;
+    private long jitter = 0;
+
+    public OfflineClient(final Snapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @param latency added to each operation (a composite is a single operation)
+     * @param jitter  the maximum of a random time added on top of that
+     */
+    public void setLatency(final Duration latency,
+                           final Duration jitter) {
+        this.latency = latency.toNanos();
+        this.jitter = jitter.toNanos();
+    }
+
+    @Override
+    public OperationResponse executeOperation(final Operation operation,
+                                              final OperationMessageHandler messageHandler)
+        throws IOException {
+        return OperationResponse.Factory.createSimple(answer(operation.getOperation()));
+    }
+
+    @Override
+    public AsyncFuture<ModelNode> executeAsync(final Operation operation,
+                                               final OperationMessageHandler messageHandler) {
+        return new Completed<>(answer(operation.getOperation()));
+    }
+
+    @Override
+    public AsyncFuture<OperationResponse> executeOperationAsync(final Operation operation,
+                                                                final OperationMessageHandler messageHandler) {
+        return new Completed<>(OperationResponse.Factory.createSimple(answer(operation.getOperation())));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private ModelNode answer(final ModelNode operation) {
+        long delay = latency;
+        if (jitter > 0) {
+            delay += ThreadLocalRandom.current().nextLong(jitter);
+        }
+        if (delay > 0) {
+            try {
+                Thread.sleep(delay / 1_000_000, (int) (delay % 1_000_000));
+            } catch (final InterruptedException e) {
+                // answer anyway, the caller sees the flag at its next wait
+                Thread.currentThread().interrupt();
+            }
+        }
+        return snapshot.answer(operation);
+    }
+
+    /**
+     * The answer is always available right away.
+     */
+    static final class Completed<T> extends AsyncFutureTask<T> {
+        Completed(final T result) {
+            super(null);
+            setResult(result);
+        }
+    }
+}
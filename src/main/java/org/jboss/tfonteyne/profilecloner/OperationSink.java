@@ -0,0 +1,46 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.util.List;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Receives the cloned operations as DMR, one by one, in the order they should be executed.
+ * The operations since the previous {@link #runBatch()} belong together, as in a CLI batch.
+ */
+public interface OperationSink {
+    void add(ModelNode operation)
+        throws IOException;
+
+    void runBatch()
+        throws IOException;
+
+    /**
+     * The end of one of the batches a clone was split in, see {@link GenericCloner#setBatchSize(int)}.
+     *
+     * @param number    of the batch, counting from 1 for each clone
+     * @param dependsOn the earlier batches of the same clone which must be applied first
+     * @throws IOException
+     */
+    default void runBatch(final int number,
+                          final List<Integer> dependsOn)
+        throws IOException {
+        runBatch();
+    }
+}
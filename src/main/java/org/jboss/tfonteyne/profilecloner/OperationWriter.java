@@ -0,0 +1,128 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Writes the cloned operations as DMR instead of CLI commands, for tools which replay or compare them
+ * without a CLI parser. Each batch is written as one composite operation, ready to be executed:
+ * <ul>
+ * <li>JSON: one compact JSON document per line</li>
+ * <li>DMR: for each one, its length as a 4 byte (big endian) int, followed by the DMR binary form</li>
+ * </ul>
+ * Split batches are written in an order they can be executed in, one after the other.
+ */
+public class OperationWriter implements OperationSink, Closeable {
+
+    public enum Format {
+        JSON, DMR
+    }
+
+    private final OutputStream out;
+    private final DataOutputStream data;
+    private final Format format;
+    private final boolean console;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private ModelNode steps;
+
+    private OperationWriter(final OutputStream out,
+                            final Format format,
+                            final boolean console) {
+        this.out = out;
+        this.data = new DataOutputStream(out);
+        this.format = format;
+        this.console = console;
+    }
+
+    /**
+     * @param filename the file to write to, or null for the console
+     * @param format   of the operations
+     * @param console  the console, flushed but not closed
+     * @return a writer, which must be closed to flush its output
+     * @throws IOException
+     */
+    public static OperationWriter open(final String filename,
+                                       final Format format,
+                                       final OutputStream console)
+        throws IOException {
+        if (filename == null) {
+            return new OperationWriter(new BufferedOutputStream(console), format, true);
+        }
+        return new OperationWriter(new BufferedOutputStream(Files.newOutputStream(Paths.get(filename))), format, false);
+    }
+
+    @Override
+    public void add(final ModelNode operation) {
+        if (steps == null) {
+            steps = new ModelNode().setEmptyList();
+        }
+        steps.add(operation);
+    }
+
+    @Override
+    public void runBatch()
+        throws IOException {
+        if (steps == null) {
+            return;
+        }
+        final ModelNode composite = new ModelNode();
+        composite.get(ClientConstants.OP).set(ClientConstants.COMPOSITE);
+        composite.get(ClientConstants.OP_ADDR).setEmptyList();
+        composite.get(ClientConstants.STEPS).set(steps);
+        steps = null;
+        write(composite);
+    }
+
+    private void write(final ModelNode operation)
+        throws IOException {
+        if (format == Format.JSON) {
+            out.write(operation.toJSONString(true).getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+        } else {
+            buffer.reset();
+            operation.writeExternal(buffer);
+            data.writeInt(buffer.size());
+            buffer.writeTo(data);
+        }
+    }
+
+    /**
+     * Writes the steps added since the last batch, if any, and flushes the output.
+     */
+    @Override
+    public void close()
+        throws IOException {
+        runBatch();
+        if (console) {
+            out.flush();
+        } else {
+            out.close();
+        }
+    }
+}
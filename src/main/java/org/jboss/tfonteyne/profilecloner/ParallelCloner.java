@@ -0,0 +1,189 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.jboss.as.cli.CommandLineException;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Runs a list of cloners concurrently, each one rendering (and reading what was not fetched
+ * beforehand) on its own thread, while the commands still reach the sink in the order of the list;
+ * the output is the same as when running them one after the other.
+ * <p>
+ * Only a limited number of cloners is started ahead of the one being written out,
+ * so the commands buffered in memory stay bounded.
+ */
+public class ParallelCloner implements Cloner {
+
+    /**
+     * Creates a cloner; called on the worker thread, as creating a cloner may
+     * already need a round trip to the controller.
+     */
+    @FunctionalInterface
+    public interface Factory {
+        Cloner create()
+            throws IOException,
+                   CommandLineException;
+    }
+
+    private final List<Factory> factories;
+    private final int threads;
+
+    /**
+     * @param factories for the cloners, in the order their output must appear
+     * @param threads   the number of workers, 1 runs everything on the calling thread
+     */
+    public ParallelCloner(final List<Factory> factories,
+                          final int threads) {
+        this.factories = factories;
+        this.threads = threads;
+    }
+
+    @Override
+    public void copy(final CommandSink sink)
+        throws IOException,
+               CommandLineException {
+        run(cloner -> cloner.copy(sink), cloner -> {
+            final List<String> commands = new ArrayList<>();
+            cloner.copy(commands::add);
+            return () -> {
+                for (String command : commands) {
+                    sink.add(command);
+                }
+            };
+        });
+    }
+
+    @Override
+    public void apply(final OperationSink sink)
+        throws IOException,
+               CommandLineException {
+        run(cloner -> cloner.apply(sink), cloner -> {
+            final List<Replay> calls = new ArrayList<>();
+            cloner.apply(new OperationSink() {
+                @Override
+                public void add(final ModelNode operation) {
+                    calls.add(() -> sink.add(operation));
+                }
+
+                @Override
+                public void runBatch() {
+                    calls.add(sink::runBatch);
+                }
+
+                @Override
+                public void runBatch(final int number,
+                                     final List<Integer> dependsOn) {
+                    calls.add(() -> sink.runBatch(number, dependsOn));
+                }
+            });
+            return () -> {
+                for (Replay call : calls) {
+                    call.replay();
+                }
+            };
+        });
+    }
+
+    /**
+     * @param direct   generates straight into the sink, when running sequentially
+     * @param buffered generates into a buffer on a worker thread, the result writes it to the sink
+     */
+    private void run(final Direct direct,
+                     final Buffered buffered)
+        throws IOException,
+               CommandLineException {
+        if (threads <= 1 || factories.size() <= 1) {
+            for (Factory factory : factories) {
+                direct.generate(factory.create());
+            }
+            return;
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            final Thread thread = new Thread(runnable, "profilecloner-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            final int window = threads * 2;
+            final Deque<Future<Replay>> pending = new ArrayDeque<>();
+            int next = 0;
+            while (next < factories.size() || !pending.isEmpty()) {
+                while (next < factories.size() && pending.size() < window) {
+                    final Factory factory = factories.get(next++);
+                    pending.add(executor.submit(() -> buffered.generate(factory.create())));
+                }
+                get(pending.poll()).replay();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @FunctionalInterface
+    private interface Direct {
+        void generate(Cloner cloner)
+            throws IOException,
+                   CommandLineException;
+    }
+
+    @FunctionalInterface
+    private interface Buffered {
+        Replay generate(Cloner cloner)
+            throws IOException,
+                   CommandLineException;
+    }
+
+    @FunctionalInterface
+    private interface Replay {
+        void replay()
+            throws IOException;
+    }
+
+    private static Replay get(final Future<Replay> future)
+        throws IOException,
+               CommandLineException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof CommandLineException) {
+                throw (CommandLineException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new java.lang.RuntimeException(cause);
+        }
+    }
+}
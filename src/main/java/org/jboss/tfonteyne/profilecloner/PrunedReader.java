@@ -0,0 +1,209 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Reads a resource without the subtrees an {@link AddressFilter} leaves out.
+ * <p>
+ * Only the resources below which something is left out are read without their children; the children
+ * they hold placeholders for are read next, those kept as a whole recursively. All reads of one level
+ * are the steps of one composite (see {@link ModelFetcher}), so the number of round trips follows the
+ * depth of the patterns, not the number of resources. A child left out is set to an empty resource,
+ * which the cloner skips as the filter tells it to.
+ * <p>
+ * As for the {@link LevelReader}, an object holding only undefined values is taken to be a child type.
+ */
+public class PrunedReader {
+
+    private static final String READ_CHILDREN_RESOURCES = "read-children-resources";
+    private static final String INCLUDE_DEFAULTS = "include-defaults";
+
+    private final ModelControllerClient client;
+    private final AddressFilter filter;
+
+    public PrunedReader(final ModelControllerClient client,
+                        final AddressFilter filter) {
+        this.client = client;
+        this.filter = filter;
+    }
+
+    /**
+     * The result of {@link ModelFetcher#readSource}, with the subtrees kept by the filter loaded (once)
+     * if it was read without them. A lazy read is left as it is, for the {@link LevelReader}.
+     *
+     * @param client  to read the subtrees with
+     * @param filter  the include/exclude patterns, or null
+     * @param lazy    as given to the read
+     * @param address of the source
+     * @param fetch   the read of the source, may be shared with other cloners
+     * @return the source
+     * @throws IOException
+     */
+    public static ModelNode complete(final ModelControllerClient client,
+                                     final AddressFilter filter,
+                                     final int lazy,
+                                     final AddressStack address,
+                                     final ModelFetcher.Fetch fetch)
+        throws IOException {
+        final ModelNode root = fetch.get();
+        if (filter != null && lazy == 0 && filter.decide(address) == AddressFilter.Decision.PARTIAL) {
+            synchronized (fetch) {
+                new PrunedReader(client, filter).load(address, root);
+            }
+        }
+        return root;
+    }
+
+    /**
+     * Replace the placeholders below the resource, level by level. Nothing is read again
+     * for a resource loaded before.
+     *
+     * @param address  of the resource
+     * @param resource read without its children, the placeholders are replaced
+     * @throws IOException
+     */
+    public void load(final AddressStack address,
+                     final ModelNode resource)
+        throws IOException {
+        List<Level> level = List.of(new Level(copy(address), resource));
+        while (!level.isEmpty()) {
+            final ModelFetcher fetcher = new ModelFetcher(client);
+            final List<Read> reads = new ArrayList<>();
+            for (Level parent : level) {
+                register(parent, fetcher, reads);
+            }
+            fetcher.execute();
+
+            final List<Level> next = new ArrayList<>();
+            for (Read read : reads) {
+                final ModelNode result = read.fetch.get();
+                if (read.name == null) {
+                    read.type.set(result);
+                } else {
+                    read.type.get(read.name).set(result);
+                    if (read.partial) {
+                        final AddressStack child = copy(read.parent);
+                        child.push(read.typeName, read.name);
+                        next.add(new Level(child, read.type.get(read.name)));
+                    }
+                }
+            }
+            level = next;
+        }
+    }
+
+    /**
+     * Register the reads of the children of a resource: all children of a type at once if they are
+     * all kept as a whole, else each one on its own.
+     */
+    private void register(final Level parent,
+                          final ModelFetcher fetcher,
+                          final List<Read> reads) {
+        final AddressStack address = parent.address;
+        for (String typeName : parent.resource.keys()) {
+            final ModelNode type = parent.resource.get(typeName);
+            if (!LevelReader.isPlaceholder(type)) {
+                continue;
+            }
+            final List<String> names = new ArrayList<>(type.keys());
+            final AddressFilter.Decision[] decisions = new AddressFilter.Decision[names.size()];
+            boolean all = true;
+            for (int i = 0; i < decisions.length; i++) {
+                address.push(typeName, names.get(i));
+                decisions[i] = filter.decide(address);
+                address.pop();
+                all &= decisions[i] == AddressFilter.Decision.ALL;
+            }
+            if (all) {
+                final ModelNode node = new ModelNode();
+                node.get(ClientConstants.OP).set(READ_CHILDREN_RESOURCES);
+                address.setAddress(node);
+                node.get(ClientConstants.CHILD_TYPE).set(typeName);
+                node.get(ClientConstants.RECURSIVE).set(true);
+                node.get(INCLUDE_DEFAULTS).set(false);
+                reads.add(new Read(address, typeName, type, null, false, fetcher.add(node)));
+                continue;
+            }
+            for (int i = 0; i < decisions.length; i++) {
+                final String name = names.get(i);
+                if (decisions[i] == AddressFilter.Decision.PRUNE) {
+                    type.get(name).setEmptyObject();
+                } else {
+                    final boolean partial = decisions[i] == AddressFilter.Decision.PARTIAL;
+                    address.push(typeName, name);
+                    reads.add(new Read(address, typeName, type, name, partial, fetcher.readResource(address, !partial)));
+                    address.pop();
+                }
+            }
+        }
+    }
+
+    private static AddressStack copy(final AddressStack address) {
+        final AddressStack copy = new AddressStack("");
+        for (int i = 0; i < address.size(); i++) {
+            copy.push(address.getName(i), address.getValue(i));
+        }
+        return copy;
+    }
+
+    /**
+     * A resource of which the children are read next.
+     */
+    private static final class Level {
+        private final AddressStack address;
+        private final ModelNode resource;
+
+        private Level(final AddressStack address,
+                      final ModelNode resource) {
+            this.address = address;
+            this.resource = resource;
+        }
+    }
+
+    /**
+     * A registered read of all children of a type, or of one child.
+     */
+    private static final class Read {
+        private final AddressStack parent;
+        private final String typeName;
+        private final ModelNode type;
+        private final String name;
+        private final boolean partial;
+        private final ModelFetcher.Fetch fetch;
+
+        private Read(final AddressStack parent,
+                     final String typeName,
+                     final ModelNode type,
+                     final String name,
+                     final boolean partial,
+                     final ModelFetcher.Fetch fetch) {
+            this.parent = parent;
+            this.typeName = typeName;
+            this.type = type;
+            this.name = name;
+            this.partial = partial;
+            this.fetch = fetch;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.as.controller.client.Operation;
+import org.jboss.as.controller.client.OperationMessageHandler;
+import org.jboss.as.controller.client.OperationResponse;
+import org.jboss.dmr.ModelNode;
+import org.jboss.threads.AsyncFuture;
+
+/**
+ * Passes everything on to the real client, recording the results of the (synchronous)
+ * reads into a {@link Snapshot}.
+ */
+public class RecordingClient implements ModelControllerClient {
+
+    private final ModelControllerClient client;
+    private final Snapshot snapshot;
+
+    public RecordingClient(final ModelControllerClient client,
+                           final Snapshot snapshot) {
+        this.client = client;
+        this.snapshot = snapshot;
+    }
+
+    @Override
+    public OperationResponse executeOperation(final Operation operation,
+                                              final OperationMessageHandler messageHandler)
+        throws IOException {
+        final OperationResponse response = client.executeOperation(operation, messageHandler);
+        snapshot.record(operation.getOperation(), response.getResponseNode());
+        return response;
+    }
+
+    @Override
+    public AsyncFuture<ModelNode> executeAsync(final Operation operation,
+                                               final OperationMessageHandler messageHandler) {
+        return client.executeAsync(operation, messageHandler);
+    }
+
+    @Override
+    public AsyncFuture<OperationResponse> executeOperationAsync(final Operation operation,
+                                                                final OperationMessageHandler messageHandler) {
+        return client.executeOperationAsync(operation, messageHandler);
+    }
+
+    /**
+     * The real client is owned by whoever created it.
+     */
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.ModelType;
+import org.jboss.dmr.Property;
+
+/**
+ * A local copy of the parts of a management model read during a run.
+ * <p>
+ * The results of the reads are merged into one tree, each at its own address, including the
+ * attributes of the root with the management version. The tree is saved in DMR binary form,
+ * optionally gzipped, and can answer the same reads again without a controller.
+ * <p>
+ * Resource descriptions are kept apart, by the address they were read at.
+ */
+public class Snapshot {
+
+    private static final String FAILED = "failed";
+    private static final String SUCCESS = "success";
+    private static final String READ_CHILDREN_RESOURCES = "read-children-resources";
+    private static final String READ_CHILDREN_TYPES = "read-children-types";
+    private static final String READ_RESOURCE_DESCRIPTION = "read-resource-description";
+    static final String READ_CONFIG_AS_XML = "read-config-as-xml";
+
+    private static final int FORMAT = 1;
+    private static final String FORMAT_KEY = "snapshot-format";
+    private static final String MODEL_KEY = "model";
+    private static final String DESCRIPTIONS_KEY = "descriptions";
+
+    private final ModelNode model;
+    private final ModelNode descriptions;
+
+    public Snapshot() {
+        this(new ModelNode().setEmptyObject());
+    }
+
+    /**
+     * @param model a management model, the root of it containing the root attributes
+     */
+    public Snapshot(final ModelNode model) {
+        this(model, new ModelNode().setEmptyObject());
+    }
+
+    /**
+     * @param model        a management model, the root of it containing the root attributes
+     * @param descriptions recursive resource descriptions, keyed by the address they were read at
+     */
+    public Snapshot(final ModelNode model,
+                    final ModelNode descriptions) {
+        this.model = model;
+        this.descriptions = descriptions;
+    }
+
+    public ModelNode getModel() {
+        return model;
+    }
+
+    /**
+     * Read a snapshot, compressed or not.
+     *
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static Snapshot read(final Path file)
+        throws IOException {
+        try (InputStream in = open(file)) {
+            final ModelNode node = new ModelNode();
+            node.readExternal(in);
+            if (node.get(FORMAT_KEY).asInt(0) != FORMAT) {
+                throw new IOException("Not a snapshot, or an unsupported format: " + file);
+            }
+            return new Snapshot(node.get(MODEL_KEY),
+                                node.hasDefined(DESCRIPTIONS_KEY) ? node.get(DESCRIPTIONS_KEY) : new ModelNode().setEmptyObject());
+        }
+    }
+
+    private static InputStream open(final Path file)
+        throws IOException {
+        final InputStream in = new BufferedInputStream(Files.newInputStream(file));
+        in.mark(2);
+        final int magic = in.read() | (in.read() << 8);
+        in.reset();
+        if (magic == GZIPInputStream.GZIP_MAGIC) {
+            return new BufferedInputStream(new GZIPInputStream(in));
+        }
+        return in;
+    }
+
+    /**
+     * @param file
+     * @param compress gzip the DMR binary
+     * @throws IOException
+     */
+    public synchronized void write(final Path file,
+                                   final boolean compress)
+        throws IOException {
+        final ModelNode node = new ModelNode();
+        node.get(FORMAT_KEY).set(FORMAT);
+        node.get(MODEL_KEY).set(model);
+        if (!descriptions.keys().isEmpty()) {
+            node.get(DESCRIPTIONS_KEY).set(descriptions);
+        }
+        try (OutputStream out = compress
+            ? new GZIPOutputStream(Files.newOutputStream(file), 65536)
+            : new BufferedOutputStream(Files.newOutputStream(file), 65536)) {
+            node.writeExternal(out);
+        }
+    }
+
+    /**
+     * Merge the result of a successful read into the snapshot. Other operations are ignored.
+     *
+     * @param operation
+     * @param response
+     */
+    public synchronized void record(final ModelNode operation,
+                                    final ModelNode response) {
+        if (!SUCCESS.equals(response.get(ClientConstants.OUTCOME).asString())) {
+            return;
+        }
+        final ModelNode result = response.get(ClientConstants.RESULT);
+        switch (operation.get(ClientConstants.OP).asString()) {
+            case ClientConstants.COMPOSITE:
+                int i = 1;
+                for (ModelNode step : operation.get(ClientConstants.STEPS).asList()) {
+                    record(step, result.get("step-" + i++));
+                }
+                break;
+            case ClientConstants.READ_RESOURCE_OPERATION:
+                merge(at(operation), result);
+                break;
+            case ClientConstants.READ_ATTRIBUTE_OPERATION:
+                merge(at(operation).get(operation.get(ClientConstants.NAME).asString()), result);
+                break;
+            case READ_CHILDREN_RESOURCES:
+                merge(at(operation).get(operation.get(ClientConstants.CHILD_TYPE).asString()), result);
+                break;
+            case READ_RESOURCE_DESCRIPTION:
+                if (operation.get(ClientConstants.RECURSIVE).asBoolean(false)) {
+                    descriptions.get(operation.get(ClientConstants.OP_ADDR).asString()).set(result);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private ModelNode at(final ModelNode operation) {
+        ModelNode node = model;
+        if (operation.hasDefined(ClientConstants.OP_ADDR)) {
+            for (Property element : operation.get(ClientConstants.OP_ADDR).asPropertyList()) {
+                node = node.get(element.getName(), element.getValue().asString());
+            }
+        }
+        return node;
+    }
+
+    /**
+     * Copy the value into the target, without replacing anything read before by
+     * the "undefined" placeholders a non-recursive read returns for the children.
+     */
+    private static void merge(final ModelNode target,
+                              final ModelNode value) {
+        if (value.getType() == ModelType.OBJECT && target.getType() == ModelType.OBJECT) {
+            for (String key : value.keys()) {
+                final ModelNode child = value.get(key);
+                if (!child.isDefined() && target.has(key)) {
+                    continue;
+                }
+                merge(target.get(key), child);
+            }
+        } else if (value.isDefined() || !target.isDefined()) {
+            target.set(value);
+        }
+    }
+
+    /**
+     * Answer a read as the controller would have, from the snapshot.
+     *
+     * @param operation
+     * @return the response, failed when the operation is not a read or the data was not captured
+     */
+    public ModelNode answer(final ModelNode operation) {
+        final String name = operation.get(ClientConstants.OP).asString();
+        if (ClientConstants.COMPOSITE.equals(name)) {
+            final ModelNode response = success(new ModelNode());
+            int i = 1;
+            for (ModelNode step : operation.get(ClientConstants.STEPS).asList()) {
+                final ModelNode stepResponse = answer(step);
+                response.get(ClientConstants.RESULT, "step-" + i++).set(stepResponse);
+                if (FAILED.equals(stepResponse.get(ClientConstants.OUTCOME).asString())) {
+                    response.get(ClientConstants.OUTCOME).set(FAILED);
+                    response.get(ClientConstants.FAILURE_DESCRIPTION).set(stepResponse.get(ClientConstants.FAILURE_DESCRIPTION));
+                }
+            }
+            return response;
+        }
+
+        if (READ_RESOURCE_DESCRIPTION.equals(name)) {
+            // taken by the cloner as describing no dependencies, when it was not captured
+            final String address = operation.get(ClientConstants.OP_ADDR).asString();
+            return success(descriptions.hasDefined(address) ? descriptions.get(address).clone() : new ModelNode().setEmptyObject());
+        }
+
+        if (READ_CONFIG_AS_XML.equals(name)) {
+            // there is no XML, the text of the model changes whenever the model does, all the ModelCache needs
+            return success(new ModelNode(model.toString()));
+        }
+
+        final ModelNode node = find(operation.get(ClientConstants.OP_ADDR));
+        if (node == null) {
+            return failed("Not in the snapshot: " + operation.get(ClientConstants.OP_ADDR).asString());
+        }
+        switch (name) {
+            case ClientConstants.READ_RESOURCE_OPERATION:
+                // has() first, get() would add the key to the caller's operation
+                if (operation.has("attributes-only") && operation.get("attributes-only").asBoolean(false)) {
+                    return success(attributes(node));
+                } else if (operation.get(ClientConstants.RECURSIVE).asBoolean(false)) {
+                    return success(node.clone());
+                }
+                return success(shallow(node));
+            case ClientConstants.READ_ATTRIBUTE_OPERATION: {
+                final String attribute = operation.get(ClientConstants.NAME).asString();
+                if (!node.has(attribute)) {
+                    return failed("Attribute not in the snapshot: " + attribute);
+                }
+                return success(node.get(attribute).clone());
+            }
+            case ClientConstants.READ_CHILDREN_NAMES_OPERATION: {
+                final ModelNode names = new ModelNode().setEmptyList();
+                final String type = operation.get(ClientConstants.CHILD_TYPE).asString();
+                if (node.hasDefined(type)) {
+                    for (String child : node.get(type).keys()) {
+                        names.add(child);
+                    }
+                }
+                return success(names);
+            }
+            case READ_CHILDREN_TYPES: {
+                final ModelNode types = new ModelNode().setEmptyList();
+                for (String key : node.keys()) {
+                    if (isChildType(node.get(key))) {
+                        types.add(key);
+                    }
+                }
+                return success(types);
+            }
+            case READ_CHILDREN_RESOURCES: {
+                final ModelNode children = new ModelNode().setEmptyObject();
+                final String type = operation.get(ClientConstants.CHILD_TYPE).asString();
+                if (node.hasDefined(type)) {
+                    final ModelNode all = node.get(type);
+                    for (String child : all.keys()) {
+                        children.get(child).set(operation.get(ClientConstants.RECURSIVE).asBoolean(false)
+                                                    ? all.get(child).clone()
+                                                    : shallow(all.get(child)));
+                    }
+                }
+                return success(children);
+            }
+            default:
+                return failed("Operation not available in a snapshot: " + name);
+        }
+    }
+
+    private ModelNode find(final ModelNode address) {
+        ModelNode node = model;
+        if (address.isDefined()) {
+            for (Property element : address.asPropertyList()) {
+                final String value = element.getValue().asString();
+                if (!node.hasDefined(element.getName()) || !node.get(element.getName()).hasDefined(value)) {
+                    return null;
+                }
+                node = node.get(element.getName()).get(value);
+            }
+        }
+        return node;
+    }
+
+    /**
+     * The model does not tell attributes and children apart; an object holding only objects
+     * (or placeholders) is taken to be a child type, the same way the cloner does.
+     */
+    private static boolean isChildType(final ModelNode value) {
+        if (value.getType() != ModelType.OBJECT || value.keys().isEmpty()) {
+            return false;
+        }
+        for (String key : value.keys()) {
+            final ModelType type = value.get(key).getType();
+            if (type != ModelType.OBJECT && type != ModelType.UNDEFINED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ModelNode attributes(final ModelNode node) {
+        final ModelNode attributes = new ModelNode().setEmptyObject();
+        for (String key : node.keys()) {
+            if (!isChildType(node.get(key))) {
+                attributes.get(key).set(node.get(key));
+            }
+        }
+        return attributes;
+    }
+
+    private static ModelNode shallow(final ModelNode node) {
+        final ModelNode shallow = new ModelNode().setEmptyObject();
+        for (String key : node.keys()) {
+            final ModelNode value = node.get(key);
+            if (isChildType(value)) {
+                for (String child : value.keys()) {
+                    shallow.get(key, child);
+                }
+            } else {
+                shallow.get(key).set(value);
+            }
+        }
+        return shallow;
+    }
+
+    private static ModelNode success(final ModelNode result) {
+        final ModelNode response = new ModelNode();
+        response.get(ClientConstants.OUTCOME).set(SUCCESS);
+        response.get(ClientConstants.RESULT).set(result);
+        return response;
+    }
+
+    private static ModelNode failed(final String description) {
+        final ModelNode response = new ModelNode();
+        response.get(ClientConstants.OUTCOME).set(FAILED);
+        response.get(ClientConstants.FAILURE_DESCRIPTION).set(description);
+        return response;
+    }
+}
@@ -17,8 +17,10 @@
 package org.jboss.tfonteyne.profilecloner;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import org.jboss.as.cli.CommandLineException;
 import org.jboss.as.controller.client.ModelControllerClient;
 import org.jboss.as.controller.client.helpers.ClientConstants;
@@ -28,33 +30,191 @@ import org.jboss.dmr.ModelNode;
  * As there is no actual "profile" root in standalone, we must walk the list of subsystems instead.
  * Each subsystem is set within batch/run-batch as the user will likely only want copy/paste some of them.
  * This is still easier then cloning one subsystem at a time.
- *
- * TODO: it seems that creating all subsystems in one single batch fails due to dependency issues.
- *       For now, each subsystem gets its own batch. 
- *       Interdependencies will require re-ordering before adding.
+ * <p>
+ * Creating all subsystems in one single batch fails in the model order due to dependency issues,
+ * so in "single batch" mode the subsystems, and the resources within them, are re-ordered
+ * by their capability references first, see {@link DependencyOrder}.
+ * <p>
+ * All subsystems are read in the one composite of the run, see {@link ModelFetcher}, so their models
+ * are all held in memory until they are cloned; a lazy read (see {@link #setLazy(int)}) keeps that down
+ * for very large servers, at the cost of more round trips.
  */
 public class StandaloneCloner implements Cloner {
 
     private static final String FAILED = "failed";
 
     private final ModelControllerClient client;
+    private final int threads;
+
+    private boolean singleBatch = false;
+    private int batchSize = 0;
+    private int lazy = 0;
+    private CloneMetrics metrics;
+    private AddressFilter filter;
+
+    private ModelFetcher fetcher;
+    private List<ModelNode> subsystems;
+    private final Map<String, ModelFetcher.Fetch> reads = new LinkedHashMap<>();
+    private final Map<String, ModelFetcher.Fetch> descriptions = new LinkedHashMap<>();
 
     public StandaloneCloner(final ModelControllerClient client) {
+        this(client, 1);
+    }
+
+    /**
+     * @param client
+     * @param threads the number of subsystems to render concurrently, once all of them are read;
+     *                the output is the same as for a sequential run
+     */
+    public StandaloneCloner(final ModelControllerClient client,
+                            final int threads) {
         this.client = client;
+        this.threads = threads;
+    }
+
+    /**
+     * @param batchSize split the batch of each subsystem, see {@link GenericCloner#setBatchSize(int)}
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param singleBatch put all subsystems in one batch, ordered by their dependencies
+     */
+    public void setSingleBatch(final boolean singleBatch) {
+        this.singleBatch = singleBatch;
+    }
+
+    /**
+     * @param inFlight read each subsystem level by level, see {@link GenericCloner#setLazy(int)}
+     */
+    public void setLazy(final int inFlight) {
+        this.lazy = inFlight;
+    }
+
+    /**
+     * @param filter subsystems left out as a whole are not read at all, see {@link GenericCloner#setFilter(AddressFilter)}
+     */
+    public void setFilter(final AddressFilter filter) {
+        this.filter = filter;
+    }
+
+    /**
+     * @param metrics count each subsystem as a root, see {@link GenericCloner#setMetrics(CloneMetrics)}
+     */
+    public void setMetrics(final CloneMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Lists the subsystems, and registers the read of each of them.
+     */
+    @Override
+    public void fetch(final ModelFetcher fetcher)
+        throws IOException,
+               CommandLineException {
+        this.fetcher = fetcher;
+        subsystems = new ArrayList<>();
+        for (ModelNode subsystem : getSubsystems()) {
+            final String name = subsystem.asProperty().getName();
+            final AddressStack address = new AddressStack("subsystem", name);
+            if (filter != null && filter.decide(address) == AddressFilter.Decision.PRUNE) {
+                continue;
+            }
+            subsystems.add(subsystem);
+            reads.put(name, fetcher.readSource(address, filter, lazy));
+            if (singleBatch) {
+                descriptions.put(name, fetcher.readDescription(address));
+            }
+        }
     }
 
     @Override
-    public List<String> copy()
+    public void copy(final CommandSink sink)
         throws IOException, 
                CommandLineException {
-        final List<String> commands = new LinkedList<>();
-        final List<ModelNode> subsystems = getSubsystems();
+        final ParallelCloner cloner = getCloner();
+        if (!singleBatch) {
+            cloner.copy(sink);
+            return;
+        }
+        final LazyBatchSink batch = new LazyBatchSink(sink);
+        batch.add(LazyBatchSink.BATCH);
+        cloner.copy(batch);
+        batch.add(LazyBatchSink.RUN_BATCH);
+    }
+
+    @Override
+    public void apply(final OperationSink sink)
+        throws IOException,
+               CommandLineException {
+        final ParallelCloner cloner = getCloner();
+        if (!singleBatch) {
+            cloner.apply(sink);
+            return;
+        }
+        final LazyBatchSink batch = new LazyBatchSink(sink);
+        cloner.apply(batch);
+        batch.runBatch();
+    }
+
+    /**
+     * @return a cloner per subsystem, in the order they must be added
+     */
+    private ParallelCloner getCloner()
+        throws IOException,
+               CommandLineException {
+        if (subsystems == null) {
+            final ModelFetcher own = new ModelFetcher(client);
+            fetch(own);
+            own.execute();
+        }
+
+        List<String> names = new ArrayList<>(subsystems.size());
         for (ModelNode subsystem : subsystems) {
-            final String name = subsystem.asProperty().getName();
-            final Cloner cloner = new GenericCloner(client, "/subsystem=" + name, name, false);
-            commands.addAll(cloner.copy());
+            names.add(subsystem.asProperty().getName());
+        }
+        final DependencyOrder order = singleBatch ? new DependencyOrder() : null;
+        if (order != null) {
+            // one order for all subsystems, built once and shared by their cloners
+            final Map<String, ModelNode> sources = new LinkedHashMap<>();
+            for (String name : names) {
+                // the same reads as the cloners', completed once for them where the filter prunes them
+                sources.put(name, PrunedReader.complete(client, filter, lazy, new AddressStack("subsystem", name),
+                                                        reads.get(name)));
+                order.add(name, sources.get(name), descriptions.get(name).get());
+            }
+            names = order.sort(names, sources::get);
+        }
+
+        final List<ParallelCloner.Factory> cloners = new ArrayList<>(names.size());
+        for (String name : names) {
+            if (metrics != null) {
+                // registered here, so the report lists them in order whichever thread clones them
+                final String address = new AddressStack("subsystem", name).toString();
+                metrics.root(address, address);
+            }
+            cloners.add(() -> {
+                final GenericCloner cloner = new GenericCloner(client, "/subsystem=" + name, name, false);
+                cloner.setBatchSize(batchSize);
+                cloner.setLazy(lazy);
+                if (filter != null) {
+                    cloner.setFilter(filter);
+                }
+                if (metrics != null) {
+                    cloner.setMetrics(metrics);
+                }
+                if (order != null) {
+                    cloner.setBatch(false);
+                    cloner.setOrder(order);
+                }
+                // already read, picks up the result of the composite
+                cloner.fetch(fetcher);
+                return cloner;
+            });
         }
-        return commands;
+        return new ParallelCloner(cloners, threads);
     }
 
     private List<ModelNode> getSubsystems() 
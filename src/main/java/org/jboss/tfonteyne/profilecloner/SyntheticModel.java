@@ -0,0 +1,225 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.ValueExpression;
+
+/**
+ * Generates management models shaped like a real full-ha profile, of about a given number of resources,
+ * for benchmarks and load tests without a controller.
+ * <p>
+ * The resources are added in rounds over the subsystems which grow in real life: JGroups stacks
+ * (four levels deep), messaging queues and bridges, Infinispan caches, loggers and data sources.
+ * Attribute values include the characters needing escaping, expressions, lists and complex attributes.
+ * The model is the same for the same size.
+ */
+public final class SyntheticModel {
+
+    // the version the compatibility rules are picked for
+    private static final int MANAGEMENT_MAJOR_VERSION = 28;
+
+    private final ModelNode profile = new ModelNode();
+    private int resources = 0;
+    private int round = 0;
+
+    private SyntheticModel() {
+    }
+
+    /**
+     * @param resources the number of resources to generate, about
+     * @return a profile: the subsystems, without any address
+     */
+    public static ModelNode profile(final int resources) {
+        final SyntheticModel model = new SyntheticModel();
+        model.base();
+        while (model.resources < resources) {
+            model.grow();
+        }
+        return model.profile;
+    }
+
+    /**
+     * @param name      of the profile
+     * @param resources in the profile, about
+     * @return the root of a domain controller model with a single profile
+     */
+    public static ModelNode domain(final String name,
+                                   final int resources) {
+        final ModelNode root = root("Host Controller");
+        final ModelNode profile = profile(resources);
+        profile.get("name").set(name);
+        root.get("profile", name).set(profile);
+        return root;
+    }
+
+    /**
+     * @param resources the number of resources, about
+     * @return the root of a standalone server model
+     */
+    public static ModelNode standalone(final int resources) {
+        final ModelNode root = root("Server");
+        final ModelNode profile = profile(resources);
+        for (String key : profile.keys()) {
+            root.get(key).set(profile.get(key));
+        }
+        return root;
+    }
+
+    private static ModelNode root(final String processType) {
+        final ModelNode root = new ModelNode();
+        root.get("management-major-version").set(MANAGEMENT_MAJOR_VERSION);
+        root.get("management-minor-version").set(0);
+        root.get("management-micro-version").set(0);
+        root.get("process-type").set(processType);
+        root.get("product-name").set("Synthetic");
+        root.get("product-version").set("1.0");
+        return root;
+    }
+
+    private ModelNode resource(final String... address) {
+        ModelNode node = profile;
+        for (int i = 0; i < address.length; i += 2) {
+            node = node.get(address[i], address[i + 1]);
+        }
+        resources++;
+        return node;
+    }
+
+    private void base() {
+        resource("subsystem", "jgroups").get("default-stack").set("stack-0");
+        final ModelNode messaging = resource("subsystem", "messaging-activemq");
+        messaging.get("global-client-thread-pool-max-size").set(new ValueExpression("${messaging.threads:30}"));
+        final ModelNode server = resource("subsystem", "messaging-activemq", "server", "default");
+        server.get("journal-type").set("ASYNCIO");
+        server.get("cluster-password").set("p=\"secret\"");
+        resource("subsystem", "messaging-activemq", "server", "default", "ha-policy", "replication-master")
+            .get("check-for-live-server").set(true);
+        resource("subsystem", "infinispan");
+        final ModelNode logging = resource("subsystem", "logging");
+        logging.get("add-logging-api-dependencies").set(false);
+        resource("subsystem", "logging", "root-logger", "ROOT").get("handlers").add("CONSOLE").add("FILE");
+        resource("subsystem", "datasources");
+        resource("subsystem", "undertow").get("default-server").set("default-server");
+        final ModelNode host = resource("subsystem", "undertow", "server", "default-server", "host", "default-host");
+        host.get("alias").add("localhost");
+        resource("subsystem", "undertow", "server", "default-server", "host", "default-host", "location", "/")
+            .get("handler").set("welcome-content");
+        final ModelNode ejb = resource("subsystem", "ejb3");
+        ejb.get("default-sfsb-cache").set("distributable");
+        final ModelNode pool = resource("subsystem", "ejb3", "thread-pool", "default");
+        pool.get("max-threads").set(10);
+        pool.get("keepalive-time").get("time").set(100L);
+        pool.get("keepalive-time").get("unit").set("MILLISECONDS");
+        resource("subsystem", "transactions").get("node-identifier").set(new ValueExpression("${jboss.tx.node.id:1}"));
+    }
+
+    private void grow() {
+        final int n = round++;
+        switch (n % 6) {
+            case 0:
+                stack(n);
+                break;
+            case 1:
+            case 2:
+                queue(n);
+                break;
+            case 3:
+                cache(n);
+                break;
+            case 4:
+                logger(n);
+                break;
+            default:
+                dataSource(n);
+                break;
+        }
+    }
+
+    private void stack(final int n) {
+        final String stack = "stack-" + n;
+        resource("subsystem", "jgroups", "stack", stack).get("statistics-enabled").set(false);
+        final ModelNode transport = resource("subsystem", "jgroups", "stack", stack, "transport", "UDP");
+        transport.get("socket-binding").set("jgroups-udp");
+        transport.get("site").set(new ValueExpression("${jboss.site:s" + n + "}"));
+        final String[] protocols = {"PING", "MERGE3", "FD_SOCK", "FD_ALL", "VERIFY_SUSPECT", "pbcast.NAKACK2", "UNICAST3", "pbcast.GMS"};
+        for (String protocol : protocols) {
+            resource("subsystem", "jgroups", "stack", stack, "protocol", protocol).get("statistics-enabled").set(false);
+            resource("subsystem", "jgroups", "stack", stack, "protocol", protocol, "property", "timeout")
+                .get("value").set(1000 + n);
+            resource("subsystem", "jgroups", "stack", stack, "protocol", protocol, "property", "max_bundle_size")
+                .get("value").set("64K");
+        }
+    }
+
+    private void queue(final int n) {
+        final ModelNode queue = resource("subsystem", "messaging-activemq", "server", "default", "jms-queue", "queue-" + n);
+        queue.get("entries").add("java:/jms/queue/q" + n).add("java:jboss/exported/jms/queue/q" + n);
+        queue.get("durable").set(true);
+        final ModelNode setting = resource("subsystem", "messaging-activemq", "server", "default", "address-setting", "jms.queue.q" + n);
+        setting.get("dead-letter-address").set("jms.queue.DLQ");
+        setting.get("max-delivery-attempts").set(10);
+        setting.get("redelivery-delay").set(n * 100L);
+        if (n % 5 == 1) {
+            final ModelNode bridge = resource("subsystem", "messaging-activemq", "server", "default", "bridge", "bridge-" + n);
+            bridge.get("queue-name").set("queue-" + n);
+            bridge.get("static-connectors").add("remote-" + n);
+            bridge.get("credential-reference").get("clear-text").set("a=b\"c" + n);
+        }
+    }
+
+    private void cache(final int n) {
+        final String container = "container-" + n;
+        final ModelNode cc = resource("subsystem", "infinispan", "cache-container", container);
+        cc.get("default-cache").set("dist");
+        cc.get("aliases").add("alias-" + n);
+        resource("subsystem", "infinispan", "cache-container", container, "transport", "jgroups").get("lock-timeout").set(60000L);
+        resource("subsystem", "infinispan", "cache-container", container, "distributed-cache", "dist").get("owners").set(2);
+        resource("subsystem", "infinispan", "cache-container", container, "distributed-cache", "dist", "component", "locking")
+            .get("isolation").set("REPEATABLE_READ");
+        resource("subsystem", "infinispan", "cache-container", container, "distributed-cache", "dist", "component", "expiration")
+            .get("max-idle").set(n * 1000L);
+        resource("subsystem", "infinispan", "cache-container", container, "distributed-cache", "dist", "store", "file")
+            .get("relative-to").set("jboss.server.data.dir");
+    }
+
+    private void logger(final int n) {
+        final ModelNode logger = resource("subsystem", "logging", "logger", "org.synthetic.category" + n);
+        logger.get("level").set(n % 2 == 0 ? "DEBUG" : "WARN");
+        logger.get("use-parent-handlers").set(n % 3 == 0);
+        if (n % 10 == 4) {
+            final ModelNode handler = resource("subsystem", "logging", "periodic-rotating-file-handler", "FILE-" + n);
+            handler.get("named-formatter").set("PATTERN");
+            handler.get("file").get("relative-to").set("jboss.server.log.dir");
+            handler.get("file").get("path").set("server-" + n + ".log");
+            handler.get("suffix").set(new ValueExpression("${log.suffix:.yyyy-MM-dd}"));
+            logger.get("handlers").add("FILE-" + n);
+        }
+    }
+
+    private void dataSource(final int n) {
+        final String name = "DataSource" + n;
+        final ModelNode ds = resource("subsystem", "datasources", "data-source", name);
+        ds.get("jndi-name").set("java:jboss/datasources/" + name);
+        ds.get("connection-url").set("jdbc:h2:mem:db" + n + ";DB_CLOSE_DELAY=-1;MODE=\"Oracle\"");
+        ds.get("driver-name").set("h2");
+        ds.get("min-pool-size").set(new ValueExpression("${ds.min.pool:5}"));
+        ds.get("user-name").set("sa");
+        ds.get("password").set("pa=ss\"word");
+        resource("subsystem", "datasources", "data-source", name, "connection-properties", "ssl").get("value").set("true");
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package org.jboss.tfonteyne.profilecloner;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.as.controller.client.Operation;
+import org.jboss.as.controller.client.OperationMessageHandler;
+import org.jboss.as.controller.client.OperationResponse;
+import org.jboss.as.controller.client.helpers.ClientConstants;
+import org.jboss.dmr.ModelNode;
+import org.jboss.dmr.Property;
+import org.jboss.threads.AsyncFuture;
+
+/**
+ * Passes everything on to the real client, recording a JFR event for each (synchronous)
+ * operation, see {@link CloneEvents.ManagementOperation}.
+ */
+public class TracingClient implements ModelControllerClient {
+
+    private static final String STEPS = "steps";
+
+    private final ModelControllerClient client;
+
+    public TracingClient(final ModelControllerClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @return the client traced
+     */
+    ModelControllerClient getClient() {
+        return client;
+    }
+
+    @Override
+    public OperationResponse executeOperation(final Operation operation,
+                                              final OperationMessageHandler messageHandler)
+        throws IOException {
+        final CloneEvents.ManagementOperation event = new CloneEvents.ManagementOperation();
+        event.begin();
+        final OperationResponse response = client.executeOperation(operation, messageHandler);
+        event.end();
+        if (event.shouldCommit()) {
+            // only worked out when recorded
+            final ModelNode op = operation.getOperation();
+            final ModelNode result = response.getResponseNode();
+            event.operation = op.get(ClientConstants.OP).asString();
+            event.address = address(op.get(ClientConstants.OP_ADDR));
+            event.steps = op.hasDefined(STEPS) ? op.get(STEPS).asInt() : 0;
+            event.outcome = result.get(ClientConstants.OUTCOME).asString();
+            event.responseSize = size(result);
+            event.commit();
+        }
+        return response;
+    }
+
+    @Override
+    public AsyncFuture<ModelNode> executeAsync(final Operation operation,
+                                               final OperationMessageHandler messageHandler) {
+        return client.executeAsync(operation, messageHandler);
+    }
+
+    @Override
+    public AsyncFuture<OperationResponse> executeOperationAsync(final Operation operation,
+                                                                final OperationMessageHandler messageHandler) {
+        return client.executeOperationAsync(operation, messageHandler);
+    }
+
+    /**
+     * The real client is owned by whoever created it.
+     */
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return the address as in the CLI, without quotes
+     */
+    private static String address(final ModelNode address) {
+        if (!address.isDefined() || address.asList().isEmpty()) {
+            return "/";
+        }
+        final StringBuilder builder = new StringBuilder();
+        for (Property segment : address.asPropertyList()) {
+            builder.append('/').append(segment.getName()).append('=').append(segment.getValue().asString());
+        }
+        return builder.toString();
+    }
+
+    private static long size(final ModelNode node)
+        throws IOException {
+        final long[] size = {0};
+        node.writeExternal(new OutputStream() {
+            @Override
+            public void write(final int b) {
+                size[0]++;
+            }
+
+            @Override
+            public void write(final byte[] b,
+                              final int off,
+                              final int len) {
+                size[0] += len;
+            }
+        });
+        return size[0];
+    }
+}